@@ -0,0 +1,76 @@
+package net.roguelogix.biggerreactors.multiblocks.reactor.simulation.benching;
+
+import net.roguelogix.biggerreactors.Config;
+import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.IReactorSimulation;
+import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.cpu.ReactorSimulationScheduler;
+import net.roguelogix.phosphophyllite.threading.Queues;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server tick cost of many small reactors, with their irradiation batched into a few pool tasks or dispatched as a task each
+ * <p>
+ * Each invocation is one server tick, every reactor ticks and ReactorSimulationScheduler dispatches the irradiation for the next one, like at the end of a real tick
+ * Reactors are 5x5 to 12x12, as on a server with lots of small builds, and a control rod moves every tick so their traces are never skipped
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BatchedIrradiationBenchmark {
+    
+    @Param({"100", "300"})
+    public int reactors;
+    
+    @Param({"OFF_THREAD", "MULTI_THREADED"})
+    public BenchmarkReactors.SimulationMode mode;
+    
+    @Param({"true", "false"})
+    public boolean batched;
+    
+    private IReactorSimulation[] simulations;
+    private int tick = 0;
+    
+    @Setup(Level.Trial)
+    public void setup() {
+        // spin up the worker threads before anything is timed
+        Queues.offThread.enqueue(() -> {
+        }).join();
+        
+        Config.TestOverrides.BatchSmallReactors = batched;
+        // every reactor is traced every tick, so both sides do the same work
+        Config.TestOverrides.IrradiationBudgetMillis = 0.0;
+        simulations = new IReactorSimulation[reactors];
+        for (int i = 0; i < reactors; i++) {
+            final int size = 5 + i % 8;
+            simulations[i] = BenchmarkReactors.build(mode, BenchmarkReactors.describe(size, size, 2, BenchmarkReactors.ModeratorMix.MIXED, false));
+        }
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (var simulation : simulations) {
+            simulation.release();
+        }
+        Config.TestOverrides.clear();
+    }
+    
+    @Benchmark
+    public void serverTick() {
+        tick++;
+        //noinspection ForLoopReplaceableByForEach
+        for (int i = 0; i < simulations.length; i++) {
+            final var simulation = simulations[i];
+            final var controlRod = simulation.controlRodAt(0, 0);
+            if (controlRod != null) {
+                controlRod.setInsertion(tick * 7 % 100);
+            }
+            BenchmarkReactors.refuel(simulation);
+            simulation.tick(true);
+        }
+        ReactorSimulationScheduler.dispatchPending();
+    }
+}
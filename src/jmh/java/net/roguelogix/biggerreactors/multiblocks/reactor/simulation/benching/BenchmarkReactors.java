@@ -0,0 +1,111 @@
+package net.roguelogix.biggerreactors.multiblocks.reactor.simulation.benching;
+
+import net.roguelogix.biggerreactors.Config;
+import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.IReactorSimulation;
+import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.SimulationDescription;
+import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.accellerated.ocl.CLUtil;
+import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.accellerated.ocl.SingleQueueOpenCL12Simulation;
+import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.cpu.FullPassReactorSimulation;
+import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.cpu.SampledReactorSimulation;
+import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.cpu.TimeSlicedReactorSimulation;
+import net.roguelogix.biggerreactors.registries.ReactorModeratorRegistry;
+
+/**
+ * Reactor layouts and simulation construction shared by the JMH benchmarks
+ */
+public class BenchmarkReactors {
+    
+    // values match the default datapack entries
+    public static final ReactorModeratorRegistry.IModeratorProperties AIR = new ReactorModeratorRegistry.ModeratorProperties(0.1, 0.25, 1.1, 0.05);
+    public static final ReactorModeratorRegistry.IModeratorProperties WATER = new ReactorModeratorRegistry.ModeratorProperties(0.33, 0.5, 1.33, 0.1);
+    public static final ReactorModeratorRegistry.IModeratorProperties GRAPHITE = new ReactorModeratorRegistry.ModeratorProperties(0.1, 0.5, 2, 2);
+    public static final ReactorModeratorRegistry.IModeratorProperties DIAMOND = new ReactorModeratorRegistry.ModeratorProperties(0.55, 0.85, 1.5, 3);
+    
+    public enum ModeratorMix {
+        // nothing but air between the rods
+        AIR,
+        // every non-rod block is graphite
+        GRAPHITE,
+        // graphite, water, and diamond varying along every axis, plus manifolds when actively cooled
+        MIXED,
+    }
+    
+    public enum SimulationMode {
+        TIME_SLICED,
+        // a random subset of rays, sized by Config.Reactor.ModeSpecific.SampledRelativeError
+        SAMPLED,
+        FULL_PASS,
+        OFF_THREAD,
+        MULTI_THREADED,
+        // full pass with the Y column update on DoubleVector lanes
+        VECTORIZED,
+        MULTI_THREADED_VECTORIZED,
+        ACCELERATED,
+        // whatever the builder picks with the current config, what a default server would run
+        BUILDER,
+    }
+    
+    public static SimulationDescription describe(int size, int height, int rodSpacing, ModeratorMix moderatorMix, boolean passivelyCooled) {
+        final var description = new SimulationDescription();
+        description.setSize(size, height, size);
+        description.setDefaultIModeratorProperties(AIR);
+        description.setPassivelyCooled(passivelyCooled);
+        description.setAmbientTemperature(293.15);
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < size; j++) {
+                if (i % rodSpacing == 0 && j % rodSpacing == 0) {
+                    description.setControlRod(i, j, true);
+                    continue;
+                }
+                for (int k = 0; k < height; k++) {
+                    switch (moderatorMix) {
+                        case AIR -> {
+                        }
+                        case GRAPHITE -> description.setModeratorProperties(i, k, j, GRAPHITE);
+                        case MIXED -> {
+                            if (!passivelyCooled && (k % 4) == 0 && ((i + j) % 3) == 0) {
+                                description.setManifold(i, k, j, true);
+                                continue;
+                            }
+                            description.setModeratorProperties(i, k, j, switch ((i + j * 3 + k) % 3) {
+                                case 0 -> GRAPHITE;
+                                case 1 -> WATER;
+                                default -> DIAMOND;
+                            });
+                        }
+                    }
+                }
+            }
+        }
+        return description;
+    }
+    
+    public static IReactorSimulation build(SimulationMode mode, SimulationDescription description) {
+        description.ensureValid();
+        return switch (mode) {
+            case TIME_SLICED -> new TimeSlicedReactorSimulation(description);
+            case SAMPLED -> new SampledReactorSimulation(description);
+            case FULL_PASS -> new FullPassReactorSimulation(description, false);
+            case OFF_THREAD -> new FullPassReactorSimulation.MultiThreaded(description, true, false);
+            case MULTI_THREADED -> new FullPassReactorSimulation.MultiThreaded(description, false, false);
+            case VECTORIZED, MULTI_THREADED_VECTORIZED -> {
+                if (!FullPassReactorSimulation.VECTOR_API_AVAILABLE) {
+                    throw new IllegalStateException("jdk.incubator.vector not available");
+                }
+                yield mode == SimulationMode.VECTORIZED ? new FullPassReactorSimulation(description, true) : new FullPassReactorSimulation.MultiThreaded(description, false, true);
+            }
+            case ACCELERATED -> {
+                if (!CLUtil.available) {
+                    throw new IllegalStateException("OpenCL acceleration not available");
+                }
+                yield new SingleQueueOpenCL12Simulation(description);
+            }
+            case BUILDER -> new SimulationDescription.Builder(Config.CONFIG.mode == Config.Mode.EXPERIMENTAL, Config.CONFIG.Reactor.useFullPassSimulation, Config.CONFIG.Reactor.useSampledSimulation, Config.CONFIG.Reactor.allowOffThreadSimulation, Config.CONFIG.Reactor.allowMultiThreadSimulation, Config.CONFIG.Reactor.allowAcceleratedSimulation, Config.CONFIG.Reactor.allowVectorizedSimulation).build(description);
+        };
+    }
+    
+    public static void refuel(IReactorSimulation simulation) {
+        simulation.fuelTank().extractWaste(Long.MAX_VALUE, false);
+        simulation.fuelTank().insertFuel(Long.MAX_VALUE, false);
+    }
+}
@@ -0,0 +1,56 @@
+package net.roguelogix.biggerreactors.multiblocks.reactor.simulation.benching;
+
+import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.IReactorSimulation;
+import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.SimulationDescription;
+import net.roguelogix.phosphophyllite.threading.Queues;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to build a simulation from a finished description, what onValidationPassed pays on every rebuild
+ * <p>
+ * The default size is the largest reactor the default config allows, Config.Reactor MaxLength/MaxWidth by MaxHeight
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReactorConstructionBenchmark {
+    
+    @Param({"128"})
+    public int size;
+    
+    @Param({"192"})
+    public int height;
+    
+    @Param({"3"})
+    public int rodSpacing;
+    
+    @Param({"GRAPHITE", "MIXED"})
+    public BenchmarkReactors.ModeratorMix moderators;
+    
+    @Param({"true", "false"})
+    public boolean passive;
+    
+    @Param({"TIME_SLICED", "FULL_PASS", "MULTI_THREADED", "MULTI_THREADED_VECTORIZED"})
+    public BenchmarkReactors.SimulationMode mode;
+    
+    private SimulationDescription description;
+    
+    @Setup(Level.Trial)
+    public void setup() {
+        // spin up the worker threads before anything is timed
+        Queues.offThread.enqueue(() -> {
+        }).join();
+        
+        description = BenchmarkReactors.describe(size, height, rodSpacing, moderators, passive);
+    }
+    
+    @Benchmark
+    public IReactorSimulation build() {
+        return BenchmarkReactors.build(mode, description);
+    }
+}
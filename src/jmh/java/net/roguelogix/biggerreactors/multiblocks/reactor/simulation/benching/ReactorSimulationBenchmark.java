@@ -0,0 +1,87 @@
+package net.roguelogix.biggerreactors.multiblocks.reactor.simulation.benching;
+
+import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.IReactorSimulation;
+import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.SimulationDescription;
+import net.roguelogix.phosphophyllite.threading.Queues;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Steady state tick cost of every simulation implementation
+ * <p>
+ * The primary result is the time per reactor tick, the rodTicks secondary result is the time per fuel rod block per tick
+ * Allocation rate is reported by the gc profiler, enabled in build.gradle
+ * <p>
+ * The default parameters are a broad sweep, narrow it down with -p, eg: -p size=128 -p height=192 -p mode=MULTI_THREADED
+ * Accelerated simulations are excluded by default, as they require an OpenCL device, use -p mode=ACCELERATED to run them
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReactorSimulationBenchmark {
+    
+    @Param({"32", "128"})
+    public int size;
+    
+    @Param({"96", "192"})
+    public int height;
+    
+    @Param({"1", "3"})
+    public int rodSpacing;
+    
+    @Param({"GRAPHITE", "MIXED"})
+    public BenchmarkReactors.ModeratorMix moderators;
+    
+    @Param({"true", "false"})
+    public boolean passive;
+    
+    @Param({"TIME_SLICED", "SAMPLED", "FULL_PASS", "OFF_THREAD", "MULTI_THREADED", "VECTORIZED", "MULTI_THREADED_VECTORIZED", "BUILDER"})
+    public BenchmarkReactors.SimulationMode mode;
+    
+    // identical reactors ticked back to back, like a server with several copies of the same design
+    @Param({"1"})
+    public int reactors;
+    
+    private IReactorSimulation[] simulations;
+    private long rodTicksPerTick;
+    
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class RodTicks {
+        public long rodTicks;
+        
+        @Setup(Level.Iteration)
+        public void reset() {
+            rodTicks = 0;
+        }
+    }
+    
+    @Setup(Level.Trial)
+    public void setup() {
+        // spin up the worker threads before anything is timed
+        Queues.offThread.enqueue(() -> {
+        }).join();
+        
+        final SimulationDescription description = BenchmarkReactors.describe(size, height, rodSpacing, moderators, passive);
+        simulations = new IReactorSimulation[reactors];
+        for (int i = 0; i < reactors; i++) {
+            simulations[i] = BenchmarkReactors.build(mode, description);
+        }
+        rodTicksPerTick = (long) description.controlRodCount() * height * reactors;
+    }
+    
+    @Benchmark
+    public void tick(RodTicks counters) {
+        //noinspection ForLoopReplaceableByForEach
+        for (int i = 0; i < simulations.length; i++) {
+            final var simulation = simulations[i];
+            BenchmarkReactors.refuel(simulation);
+            simulation.tick(true);
+        }
+        counters.rodTicks += rodTicksPerTick;
+    }
+}
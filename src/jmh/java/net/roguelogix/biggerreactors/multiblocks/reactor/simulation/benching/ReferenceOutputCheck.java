@@ -0,0 +1,253 @@
+package net.roguelogix.biggerreactors.multiblocks.reactor.simulation.benching;
+
+import net.roguelogix.biggerreactors.Config;
+import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.IReactorSimulation;
+import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.SimulationDescription;
+import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.base.SimulationFidelity;
+import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.cpu.FullPassReactorSimulation;
+import net.roguelogix.biggerreactors.registries.ReactorModeratorRegistry;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * Compares the approximate simulation modes against an exact full pass of the same reactor, run with ./gradlew referenceCheck
+ * <p>
+ * Not a benchmark, the exact reference is far too slow to time, this only checks the output the faster modes are timed at is still close to it
+ * Every mode ticks through the same control rod changes as the reference, the largest relative difference in fuel heat, stack heat, and fertility over the run has to stay within the mode's bound
+ * Throws once every case has run if any of them is past its bound
+ */
+public class ReferenceOutputCheck {
+    
+    private static final int TICKS = 400;
+    // control rods move this often, so traces are redone and not just reused
+    private static final int ROD_CHANGE_INTERVAL = 50;
+    // steps from 4 blocks out go through 2x2x2 cells, from 8 through 4x4x4 ones
+    private static final double COARSE_RAY_DISTANCE = 4;
+    private static final double COARSE_BOUND = 0.02;
+    private static final double RESPONSE_TOLERANCE_BOUND = 0.001;
+    private static final double RAY_TERMINATION_BOUND = 1e-6;
+    // the reactor heats from ambient to a few thousand kelvin, through dozens of samples
+    private static final double RESPONSE_TABLE_TEMPERATURE_STEP = 50;
+    private static final double RESPONSE_TABLE_BOUND = 0.0001;
+    // a few rods a tick cant keep up with the first ticks, where the fuel heats by over 100K a tick, and fertility carries that on long after
+    private static final double RESPONSE_TABLE_ROD_SAMPLING_BOUND = 0.08;
+    
+    private static final String[] OUTPUT_NAMES = {"FuelHeat", "StackHeat", "Fertility"};
+    
+    private static final List<String> failed = new ArrayList<>();
+    
+    public static void main(String[] args) {
+        // the ray table is built once from this, long enough rays for the far end of them to matter
+        Config.TestOverrides.IrradiationDistance = 12L;
+        // the reference, nothing cached or cut short
+        Config.TestOverrides.IrradiationResponseTolerance = 0.0;
+        Config.TestOverrides.RayTerminationThreshold = 0.0;
+        
+        checkSampled();
+        final var reactor = BenchmarkReactors.describe(32, 32, 3, BenchmarkReactors.ModeratorMix.MIXED, true);
+        final double[][] exact = run(BenchmarkReactors.SimulationMode.FULL_PASS, reactor);
+        checkResponseTolerance(reactor, exact);
+        checkRayTermination();
+        checkResponseTable(reactor, exact);
+        checkCoarseRays(reactor, exact);
+        checkModeratorIndices(exact);
+        
+        Config.TestOverrides.clear();
+        if (!failed.isEmpty()) {
+            throw new IllegalStateException("Past their bound: " + String.join(", ", failed));
+        }
+    }
+    
+    private static void checkSampled() {
+        final var reactor = BenchmarkReactors.describe(48, 16, 2, BenchmarkReactors.ModeratorMix.MIXED, true);
+        final double[][] exact = run(BenchmarkReactors.SimulationMode.FULL_PASS, reactor);
+        // the error target is per tick, heat and fertility average it out over many ticks, so they stay well inside it
+        check("SAMPLED", OUTPUT_NAMES, maxRelativeDifference(exact, run(BenchmarkReactors.SimulationMode.SAMPLED, reactor)), Config.CONFIG.Reactor.ModeSpecific.SampledRelativeError);
+        // 4 rods, never more than the fewest samples, so every tick is a full pass, only summed in a different order
+        final var smallReactor = BenchmarkReactors.describe(4, 16, 2, BenchmarkReactors.ModeratorMix.MIXED, true);
+        check("SAMPLED_FULL_PASS", OUTPUT_NAMES, maxRelativeDifference(run(BenchmarkReactors.SimulationMode.FULL_PASS, smallReactor), run(BenchmarkReactors.SimulationMode.SAMPLED, smallReactor)), 1e-12);
+    }
+    
+    /**
+     * cached irradiation as shipped, reused until hardness or moderator properties drift past the tolerance
+     */
+    private static void checkResponseTolerance(SimulationDescription reactor, double[][] exact) {
+        Config.TestOverrides.IrradiationResponseTolerance = null;
+        final double[][] cached = run(BenchmarkReactors.SimulationMode.FULL_PASS, reactor);
+        Config.TestOverrides.IrradiationResponseTolerance = 0.0;
+        check("IRRADIATION_RESPONSE_TOLERANCE", OUTPUT_NAMES, maxRelativeDifference(exact, cached), RESPONSE_TOLERANCE_BOUND);
+    }
+    
+    /**
+     * rays cut short as shipped, once what is left of them is under the threshold
+     * <p>
+     * Rays through the reactor the others use never get that low within 12 blocks, all diamond does, which absorbs over half of what goes through each block
+     */
+    private static void checkRayTermination() {
+        final var reactor = fillModerators(BenchmarkReactors.describe(32, 32, 3, BenchmarkReactors.ModeratorMix.GRAPHITE, true), BenchmarkReactors.DIAMOND);
+        final double[][] exact = run(BenchmarkReactors.SimulationMode.FULL_PASS, reactor);
+        Config.TestOverrides.RayTerminationThreshold = null;
+        final double[][] terminated = run(BenchmarkReactors.SimulationMode.FULL_PASS, reactor);
+        Config.TestOverrides.RayTerminationThreshold = 0.0;
+        check("RAY_TERMINATION_THRESHOLD", OUTPUT_NAMES, maxRelativeDifference(exact, terminated), RAY_TERMINATION_BOUND);
+    }
+    
+    /**
+     * irradiation interpolated between fuel temperatures RESPONSE_TABLE_TEMPERATURE_STEP apart, while the reactor heats up from cold
+     * <p>
+     * With every rod traced each tick, samples are traced as soon as they are reached, at rod sampling they start off with the responses of the closest one,
+     * which only a reference at rod sampling as well can tell apart from the fewer rays and rods it traces
+     */
+    private static void checkResponseTable(SimulationDescription reactor, double[][] exact) {
+        Config.TestOverrides.ResponseTableTemperatureStep = RESPONSE_TABLE_TEMPERATURE_STEP;
+        final double[][] interpolated = run(BenchmarkReactors.SimulationMode.FULL_PASS, reactor);
+        Config.TestOverrides.ResponseTableTemperatureStep = null;
+        check("RESPONSE_TABLE_TEMPERATURE_STEP", OUTPUT_NAMES, maxRelativeDifference(exact, interpolated), RESPONSE_TABLE_BOUND);
+        
+        Config.TestOverrides.FidelityLevel = SimulationFidelity.ROD_SAMPLING;
+        final double[][] sampledExact = run(BenchmarkReactors.SimulationMode.FULL_PASS, reactor);
+        Config.TestOverrides.ResponseTableTemperatureStep = RESPONSE_TABLE_TEMPERATURE_STEP;
+        final double[][] sampledInterpolated = run(BenchmarkReactors.SimulationMode.FULL_PASS, reactor);
+        Config.TestOverrides.ResponseTableTemperatureStep = null;
+        Config.TestOverrides.FidelityLevel = null;
+        check("RESPONSE_TABLE rod sampling", OUTPUT_NAMES, maxRelativeDifference(sampledExact, sampledInterpolated), RESPONSE_TABLE_ROD_SAMPLING_BOUND);
+    }
+    
+    private static void checkCoarseRays(SimulationDescription reactor, double[][] exact) {
+        Config.TestOverrides.CoarseRayDistance = COARSE_RAY_DISTANCE;
+        final var coarse = (FullPassReactorSimulation) BenchmarkReactors.build(BenchmarkReactors.SimulationMode.FULL_PASS, reactor);
+        Config.TestOverrides.CoarseRayDistance = null;
+        check("COARSE_RAYS", OUTPUT_NAMES, maxRelativeDifference(exact, run(coarse, reactor)), COARSE_BOUND);
+        // the irradiation of the last tick traced both ways, as the heat above lags behind it
+        final double[] rayErrors = coarse.coarseRayErrors();
+        coarse.release();
+        if (rayErrors == null) {
+            System.out.println(String.format("%-32s not traced with coarse rays FAILED", "COARSE_RAYS last tick"));
+            failed.add("COARSE_RAYS last tick");
+            return;
+        }
+        for (int i = 0; i < rayErrors.length; i++) {
+            rayErrors[i] = Math.abs(rayErrors[i]);
+        }
+        check("COARSE_RAYS last tick", new String[]{"FuelRF", "FuelRad", "CaseRF"}, rayErrors, COARSE_BOUND);
+    }
+    
+    /**
+     * moderator indices only change how the layout is stored, every width has to match the exact run, which is a byte per block, bit for bit
+     */
+    private static void checkModeratorIndices(double[][] exact) {
+        final var reactor = BenchmarkReactors.describe(32, 32, 3, BenchmarkReactors.ModeratorMix.MIXED, true);
+        Config.TestOverrides.PackedModeratorIndices = true;
+        final var nibbles = BenchmarkReactors.build(BenchmarkReactors.SimulationMode.FULL_PASS, reactor);
+        Config.TestOverrides.PackedModeratorIndices = null;
+        check("NIBBLE_MODERATOR_INDICES", OUTPUT_NAMES, maxRelativeDifference(exact, run(nibbles, reactor)), 0);
+        nibbles.release();
+        // over 128 moderator types with the same properties as the 3 above
+        final var clonedReactor = cloneModerators(BenchmarkReactors.describe(32, 32, 3, BenchmarkReactors.ModeratorMix.MIXED, true), 64);
+        check("SHORT_MODERATOR_INDICES", OUTPUT_NAMES, maxRelativeDifference(exact, run(BenchmarkReactors.SimulationMode.FULL_PASS, clonedReactor)), 0);
+    }
+    
+    /**
+     * @return description, with each of its moderators swapped out block by block for one of copies identical moderators
+     */
+    private static SimulationDescription cloneModerators(SimulationDescription description, int copies) {
+        final var clones = new IdentityHashMap<ReactorModeratorRegistry.IModeratorProperties, ReactorModeratorRegistry.IModeratorProperties[]>();
+        int block = 0;
+        for (int i = 0; i < description.x(); i++) {
+            for (int j = 0; j < description.z(); j++) {
+                if (description.isControlRodAt(i, j)) {
+                    continue;
+                }
+                for (int k = 0; k < description.y(); k++) {
+                    final var properties = description.moderatorPropertiesAt(i, k, j);
+                    final var propertiesClones = clones.computeIfAbsent(properties, original -> {
+                        final var copied = new ReactorModeratorRegistry.IModeratorProperties[copies];
+                        for (int l = 0; l < copies; l++) {
+                            copied[l] = new ReactorModeratorRegistry.ModeratorProperties(original.absorption(), original.heatEfficiency(), original.moderation(), original.heatConductivity());
+                        }
+                        return copied;
+                    });
+                    description.setModeratorProperties(i, k, j, propertiesClones[block++ % copies]);
+                }
+            }
+        }
+        return description;
+    }
+    
+    /**
+     * @return description, with every moderator block swapped out for properties
+     */
+    private static SimulationDescription fillModerators(SimulationDescription description, ReactorModeratorRegistry.IModeratorProperties properties) {
+        for (int i = 0; i < description.x(); i++) {
+            for (int j = 0; j < description.z(); j++) {
+                if (description.isControlRodAt(i, j)) {
+                    continue;
+                }
+                for (int k = 0; k < description.y(); k++) {
+                    description.setModeratorProperties(i, k, j, properties);
+                }
+            }
+        }
+        return description;
+    }
+    
+    private static double[][] run(BenchmarkReactors.SimulationMode mode, SimulationDescription description) {
+        final var simulation = BenchmarkReactors.build(mode, description);
+        final double[][] outputs = run(simulation, description);
+        simulation.release();
+        return outputs;
+    }
+    
+    /**
+     * @return fuel heat, stack heat, and fertility after every tick
+     */
+    private static double[][] run(IReactorSimulation simulation, SimulationDescription description) {
+        final double[][] outputs = new double[TICKS][];
+        for (int tick = 0; tick < TICKS; tick++) {
+            if (tick % ROD_CHANGE_INTERVAL == 0) {
+                final int insertion = (tick / ROD_CHANGE_INTERVAL) * 37 % 100;
+                for (int i = 0; i < description.x(); i++) {
+                    for (int j = 0; j < description.z(); j++) {
+                        if (description.isControlRodAt(i, j)) {
+                            // not all the same, so rods don't all trace alike
+                            simulation.controlRodAt(i, j).setInsertion((insertion + i + j) % 100);
+                        }
+                    }
+                }
+            }
+            BenchmarkReactors.refuel(simulation);
+            simulation.tick(true);
+            outputs[tick] = new double[]{simulation.fuelHeat(), simulation.stackHeat(), simulation.fertility()};
+        }
+        return outputs;
+    }
+    
+    /**
+     * @return the largest relative difference of each output over every tick
+     */
+    private static double[] maxRelativeDifference(double[][] exact, double[][] outputs) {
+        final double[] differences = new double[exact[0].length];
+        for (int tick = 0; tick < exact.length; tick++) {
+            for (int i = 0; i < differences.length; i++) {
+                differences[i] = Math.max(differences[i], Math.abs(outputs[tick][i] - exact[tick][i]) / Math.abs(exact[tick][i]));
+            }
+        }
+        return differences;
+    }
+    
+    private static void check(String name, String[] errorNames, double[] errors, double bound) {
+        final var line = new StringBuilder(String.format("%-32s", name));
+        boolean withinBound = true;
+        for (int i = 0; i < errors.length; i++) {
+            withinBound &= errors[i] <= bound;
+            line.append(String.format(" %s %.6f%%", errorNames[i], errors[i] * 100));
+        }
+        line.append(String.format(" bound %.4f%% %s", bound * 100, withinBound ? "ok" : "FAILED"));
+        System.out.println(line);
+        if (!withinBound) {
+            failed.add(name);
+        }
+    }
+}
@@ -4,6 +4,8 @@ import net.roguelogix.phosphophyllite.config.ConfigFormat;
 import net.roguelogix.phosphophyllite.config.ConfigValue;
 import net.roguelogix.phosphophyllite.registry.RegisterConfig;
 
+import javax.annotation.Nullable;
+
 @SuppressWarnings("unused")
 public class Config {
     
@@ -13,6 +15,44 @@ public class Config {
     @ConfigValue(hidden = true, enableAdvanced = true)
     private final boolean EnableAdvancedConfig = false;
     
+    /**
+     * Values used in place of the config file, only for checks run outside the game, see ReferenceOutputCheck in src/jmh
+     * Null keeps the configured value, set before any simulation is built
+     */
+    public static final class TestOverrides {
+        @Nullable
+        public static Long IrradiationDistance;
+        @Nullable
+        public static Double IrradiationResponseTolerance;
+        @Nullable
+        public static Double RayTerminationThreshold;
+        @Nullable
+        public static Double CoarseRayDistance;
+        @Nullable
+        public static Double ResponseTableTemperatureStep;
+        @Nullable
+        public static Boolean PackedModeratorIndices;
+        // in place of the level the server tick time would pick, see SimulationFidelity
+        @Nullable
+        public static Integer FidelityLevel;
+        @Nullable
+        public static Double IrradiationBudgetMillis;
+        @Nullable
+        public static Boolean BatchSmallReactors;
+        
+        public static void clear() {
+            IrradiationDistance = null;
+            IrradiationResponseTolerance = null;
+            RayTerminationThreshold = null;
+            CoarseRayDistance = null;
+            ResponseTableTemperatureStep = null;
+            PackedModeratorIndices = null;
+            FidelityLevel = null;
+            IrradiationBudgetMillis = null;
+            BatchSmallReactors = null;
+        }
+    }
+    
     public enum Mode {
         MODERN,
         EXPERIMENTAL,
@@ -77,18 +117,24 @@ public class Config {
         
         @ConfigValue(advanced = true)
         public final boolean useFullPassSimulation;
+        @ConfigValue(advanced = true, comment = "Used in place of the time sliced simulation when full pass simulation is off, traces random rays each tick, as many as it takes to meet ModeSpecific.SampledRelativeError")
+        public final boolean useSampledSimulation;
         @ConfigValue(advanced = true)
         public final boolean allowOffThreadSimulation;
         @ConfigValue(advanced = true)
         public final boolean allowMultiThreadSimulation;
         @ConfigValue(advanced = true)
         public final boolean allowAcceleratedSimulation;
+        @ConfigValue(advanced = true, comment = "Requires the JVM to be started with --add-modules=jdk.incubator.vector, falls back to scalar simulation otherwise")
+        public final boolean allowVectorizedSimulation;
     
         {
             useFullPassSimulation = false;
+            useSampledSimulation = false;
             allowOffThreadSimulation = true;
             allowMultiThreadSimulation = true;
             allowAcceleratedSimulation = true;
+            allowVectorizedSimulation = false;
         }
     
         @ConfigValue(range = "[1,)", advanced = true)
@@ -189,12 +235,95 @@ public class Config {
             SimulationRays = 64;
         }
         
+        public long irradiationDistance() {
+            return TestOverrides.IrradiationDistance != null ? TestOverrides.IrradiationDistance : IrradiationDistance;
+        }
+        
         public static final class ModeSpecific {
-            @ConfigValue(range = "(0,)", advanced = true)
+            @ConfigValue(range = "(0,)", advanced = true, comment = "Roughly how many fuel rods each multithreaded simulation task traces, tasks are split by estimated ray cost rather than by rod count")
             public final int ControlRodBatchSize;
+            @ConfigValue(range = "[0,)", advanced = true, comment = "Threads used by the multithreaded simulation, shared by all reactors, 0 uses one less than the number of cores. Requires a restart")
+            public final int SimulationThreads;
+            @ConfigValue(range = "[0,)", advanced = true, comment = "Estimated time the multithreaded simulation pool may spend on irradiation each server tick, reactors over it reuse their last results for a tick. 0 for no limit")
+            public final double IrradiationBudgetMillis;
+            @ConfigValue(advanced = true, comment = "Multithreaded simulations small enough to be traced in a single task are run together at the end of each server tick, a task per simulation thread for all of them instead of one each")
+            public final boolean BatchSmallReactors;
+            @ConfigValue(advanced = true, comment = "Lower the simulation ray count, then only retrace some fuel rods each tick, while the server tick time is too high")
+            public final boolean AdaptiveFidelity;
+            @ConfigValue(range = "(0,)", advanced = true, comment = "Average server tick time (ms) above which adaptive fidelity steps down")
+            public final double FidelityReduceMSPT;
+            @ConfigValue(range = "(0,)", advanced = true, comment = "Average server tick time (ms) below which adaptive fidelity steps back up")
+            public final double FidelityRestoreMSPT;
+            @ConfigValue(range = "[0,1]", advanced = true, comment = "How far the radiation hardness and moderator properties can drift, as a fraction of their current values, before cached fuel rod irradiation is retraced, 0 retraces on any change")
+            public final double IrradiationResponseTolerance;
+            @ConfigValue(advanced = true, comment = "Only simulate one mirror image/rotation of symmetric reactors while control rod insertions are symmetric too, approximate as simulation rays aren't symmetric")
+            public final boolean SymmetricIrradiation;
+            @ConfigValue(range = "[0,)", advanced = true, comment = "Reactors with at least this many interior blocks build their simulation on a background thread, and sit idle until it's ready. 0 always builds on the server thread")
+            public final long AsyncConstructionVolume;
+            @ConfigValue(range = "[0,)", advanced = true, comment = "Memory (MB) kept for simulations of disassembled reactors, reassembling the exact same layout picks its simulation back up instead of building a new one. 0 disables")
+            public final long SimulationCacheMegabytes;
+            @ConfigValue(range = "(0,1]", advanced = true, comment = "Relative standard error the sampled simulation aims for in fuel heating and fertility each tick, lower traces more rays")
+            public final double SampledRelativeError;
+            @ConfigValue(range = "[2,)", advanced = true, comment = "Fewest samples the sampled simulation takes each tick, each costs as much as tracing one fuel rod. Keeps its error estimate from being based on too few")
+            public final int SampledMinimumTraces;
+            @ConfigValue(range = "[0,1)", advanced = true, comment = "Full pass simulation rays stop once the intensity left in them is below this fraction of what they started with, the rest is dropped. 0 traces every ray to its full length")
+            public final double RayTerminationThreshold;
+            @ConfigValue(range = "[0,)", advanced = true, comment = "Full pass simulation ray steps at least this many blocks from their fuel rod go through the averages of 2x2x2 cells of the reactor instead of each block, twice as far out 4x4x4 cells. Approximate, at 4 fuel rod irradiation stays within about 2% of going block by block, 0 disables")
+            public final double CoarseRayDistance;
+            @ConfigValue(range = "[0,)", advanced = true, comment = "Full pass simulations keep fuel rod irradiation traced at fuel temperatures this many Kelvin apart, and interpolate to the actual temperature, so heating up and cooling down doesn't retrace every tick. Approximate, 0 traces at the actual temperature instead")
+            public final double ResponseTableTemperatureStep;
+            @ConfigValue(advanced = true, comment = "Full pass simulations keep the reactor layout only in native memory, a byte per block, so it is never packed, shared with other reactors of the same layout and freed when the reactor disassembles")
+            public final boolean NativeModeratorLayout;
+            @ConfigValue(advanced = true, comment = "Full pass simulations of reactors with up to 16 moderator types store their layout at half a byte per block instead of a whole one, this halves its memory, but the scalar kernel traces a little slower unpacking it")
+            public final boolean PackedModeratorIndices;
             
             {
                 ControlRodBatchSize = 32;
+                SimulationThreads = 0;
+                IrradiationBudgetMillis = 10;
+                BatchSmallReactors = false;
+                AdaptiveFidelity = false;
+                FidelityReduceMSPT = 45;
+                FidelityRestoreMSPT = 35;
+                IrradiationResponseTolerance = 0.001;
+                SymmetricIrradiation = false;
+                AsyncConstructionVolume = 262144;
+                SimulationCacheMegabytes = 64;
+                SampledRelativeError = 0.01;
+                SampledMinimumTraces = 4;
+                RayTerminationThreshold = 0.0001;
+                CoarseRayDistance = 0;
+                ResponseTableTemperatureStep = 0;
+                NativeModeratorLayout = false;
+                PackedModeratorIndices = false;
+            }
+            
+            public double irradiationBudgetMillis() {
+                return TestOverrides.IrradiationBudgetMillis != null ? TestOverrides.IrradiationBudgetMillis : IrradiationBudgetMillis;
+            }
+            
+            public boolean batchSmallReactors() {
+                return TestOverrides.BatchSmallReactors != null ? TestOverrides.BatchSmallReactors : BatchSmallReactors;
+            }
+            
+            public double irradiationResponseTolerance() {
+                return TestOverrides.IrradiationResponseTolerance != null ? TestOverrides.IrradiationResponseTolerance : IrradiationResponseTolerance;
+            }
+            
+            public double rayTerminationThreshold() {
+                return TestOverrides.RayTerminationThreshold != null ? TestOverrides.RayTerminationThreshold : RayTerminationThreshold;
+            }
+            
+            public double coarseRayDistance() {
+                return TestOverrides.CoarseRayDistance != null ? TestOverrides.CoarseRayDistance : CoarseRayDistance;
+            }
+            
+            public double responseTableTemperatureStep() {
+                return TestOverrides.ResponseTableTemperatureStep != null ? TestOverrides.ResponseTableTemperatureStep : ResponseTableTemperatureStep;
+            }
+            
+            public boolean packedModeratorIndices() {
+                return TestOverrides.PackedModeratorIndices != null ? TestOverrides.PackedModeratorIndices : PackedModeratorIndices;
             }
         }
         
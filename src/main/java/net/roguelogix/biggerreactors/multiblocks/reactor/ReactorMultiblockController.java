@@ -1,5 +1,7 @@
 package net.roguelogix.biggerreactors.multiblocks.reactor;
 
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
 import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import net.minecraft.core.BlockPos;
@@ -12,12 +14,16 @@ import net.minecraft.world.level.block.entity.BlockEntity;
 import net.minecraft.world.level.block.state.BlockState;
 import net.minecraft.world.level.material.Fluids;
 import net.minecraftforge.registries.ForgeRegistries;
+import net.roguelogix.biggerreactors.BiggerReactors;
 import net.roguelogix.biggerreactors.Config;
 import net.roguelogix.biggerreactors.multiblocks.reactor.blocks.ReactorBaseBlock;
 import net.roguelogix.biggerreactors.multiblocks.reactor.blocks.ReactorFuelRod;
 import net.roguelogix.biggerreactors.multiblocks.reactor.blocks.ReactorManifold;
 import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.IReactorSimulation;
+import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.SimulationCache;
 import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.SimulationDescription;
+import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.base.SharedStructures;
+import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.cpu.ReactorSimulationPool;
 import net.roguelogix.biggerreactors.multiblocks.reactor.state.ReactorActivity;
 import net.roguelogix.biggerreactors.multiblocks.reactor.state.ReactorState;
 import net.roguelogix.biggerreactors.multiblocks.reactor.state.ReactorType;
@@ -37,6 +43,8 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 @NonnullDefault
 @ParametersAreNonnullByDefault
@@ -315,9 +323,20 @@ public class ReactorMultiblockController extends RectangularMultiblockController
             autoEjectWaste = compound.getBoolean("autoEjectWaste");
         }
         
-        if (compound.contains("simulationData")) {
+        if (compound.contains("simulationState") || compound.contains("simulationData")) {
+            if (simulation != null) {
+                simulation.release();
+            }
             simulation = null;
-            simulationData = new PhosphophylliteCompound(compound.getByteArray("simulationData"));
+            simulationDescription = null;
+            cancelPendingSimulation();
+            if (compound.contains("simulationState")) {
+                simulationData = compound.getByteArray("simulationState");
+                legacySimulationData = null;
+            } else {
+                simulationData = null;
+                legacySimulationData = new PhosphophylliteCompound(compound.getByteArray("simulationData"));
+            }
         }
         if (compound.contains("coolantTankWrapper")) {
             coolantTankNBT = compound.getCompound("coolantTankWrapper");
@@ -326,16 +345,30 @@ public class ReactorMultiblockController extends RectangularMultiblockController
         updateBlockStates = true;
     }
     
+    // what write() last wrote, changedSinceWrite compares the simulation against it
+    @Nullable
+    private byte[] savedSimulationData;
+    @Nullable
+    private ReactorActivity savedReactorActivity;
+    private boolean savedAutoEjectWaste;
+    
     @Nonnull
     protected CompoundTag write() {
         CompoundTag compound = new CompoundTag();
         {
             compound.putString("reactorState", reactorActivity.toString());
             compound.putBoolean("autoEjectWaste", autoEjectWaste);
+            savedReactorActivity = reactorActivity;
+            savedAutoEjectWaste = autoEjectWaste;
             if (simulation != null) {
-                var phosCompound = simulation.save();
-                if (phosCompound != null) {
-                    compound.putByteArray("simulationData", phosCompound.toROBN());
+                savedSimulationData = simulation.saveState();
+                compound.putByteArray("simulationState", savedSimulationData);
+            } else if (pendingSimulation != null) {
+                // held while the new simulation builds, this is the reactor's state until then
+                if (simulationData != null) {
+                    compound.putByteArray("simulationState", simulationData);
+                } else if (legacySimulationData != null) {
+                    compound.putByteArray("simulationData", legacySimulationData.toROBN());
                 }
             }
             if (coolantTank != null) {
@@ -356,10 +389,59 @@ public class ReactorMultiblockController extends RectangularMultiblockController
     
     @Override
     protected void onValidationPassed() {
-        SimulationDescription simulationDescription = new SimulationDescription();
-        simulationDescription.setSize(maxCoord().x() - minCoord().x() - 1, maxCoord().y() - minCoord().y() - 1, maxCoord().z() - minCoord().z() - 1);
         Vector3i start = new Vector3i(1).add(minCoord());
         Vector3i end = new Vector3i(-1).add(maxCoord());
+        var airProperties = ReactorModeratorRegistry.blockModeratorProperties(Blocks.AIR);
+        if (airProperties == null) {
+            airProperties = ReactorModeratorRegistry.ModeratorProperties.EMPTY_MODERATOR;
+        }
+        final var changedBlocks = updateSimulationDescription(start, end, airProperties);
+        if (changedBlocks == null) {
+            final var newDescription = describeReactor(start, end, airProperties);
+            final var simulationBuilder = simulationBuilder();
+            final var cached = SimulationCache.take(newDescription, simulationBuilder);
+            if (cached != null) {
+                // the cached simulation goes with the description it was built from, its palette may be in a different order than the new one
+                cancelPendingSimulation();
+                simulationDescription = cached.description;
+                this.simulationBuilder = simulationBuilder;
+                setSimulation(cached.simulation);
+            } else {
+                simulationDescription = newDescription;
+                buildSimulation(simulationDescription);
+            }
+        } else if (!changedBlocks.isEmpty() && !simulation.updateLayout(simulationDescription, changedBlocks)) {
+            // the description is up to date, the simulation just cant take the changes in place
+            buildSimulation(simulationDescription);
+        }
+        
+        updateControlRodLevels();
+        collectFuel();
+        
+        int levels = this.maxCoord().y() - this.minCoord().y() - 1;
+        final int rodsPerLevel = fuelRods.size() / levels;
+        fuelRodsByLevel.clear();
+        fuelRodsByLevel.ensureCapacity(levels);
+        for (int i = 0; i < levels; i++) {
+            var newList = new ObjectArrayList<ReactorFuelRodTile>(rodsPerLevel);
+            fuelRodsByLevel.add(newList);
+        }
+        final var levelArrays = fuelRodsByLevel.elements();
+        final int minY = this.minCoord().y() + 1;
+        //noinspection ForLoopReplaceableByForEach
+        for (int i = 0; i < fuelRods.size(); i++) {
+            final var rod = fuelRods.get(i);
+            int rodLevel = rod.getBlockPos().getY();
+            rodLevel -= minY;
+            levelArrays[rodLevel].add(rod);
+        }
+        
+        updateFuelRenderingLevel(true);
+    }
+    
+    private SimulationDescription describeReactor(Vector3i start, Vector3i end, ReactorModeratorRegistry.IModeratorProperties airProperties) {
+        SimulationDescription simulationDescription = new SimulationDescription();
+        simulationDescription.setSize(end.x - start.x + 1, end.y - start.y + 1, end.z - start.z + 1);
         Util.chunkCachedBlockStateIteration(start, end, world, (state, pos) -> {
             if (!(state.getBlock() instanceof ReactorBaseBlock)) {
                 pos.sub(start);
@@ -378,20 +460,144 @@ public class ReactorMultiblockController extends RectangularMultiblockController
         }
         simulationDescription.setPassivelyCooled(coolantPorts.isEmpty());
         simulationDescription.setAmbientTemperature(293.15);
-        var airProperties = ReactorModeratorRegistry.blockModeratorProperties(Blocks.AIR);
-        if (airProperties == null) {
-            airProperties = ReactorModeratorRegistry.ModeratorProperties.EMPTY_MODERATOR;
-        }
         simulationDescription.setDefaultIModeratorProperties(airProperties);
+        return simulationDescription;
+    }
+    
+    /**
+     * patches the description the live simulation was built from with the moderators and manifolds that changed since
+     *
+     * @return linear indices of the changed blocks, null if the reactor changed in a way that needs a new description, which is then left untouched
+     */
+    @Nullable
+    private IntArrayList updateSimulationDescription(Vector3i start, Vector3i end, ReactorModeratorRegistry.IModeratorProperties airProperties) {
+        final var simulationDescription = this.simulationDescription;
+        if (simulation == null || simulationDescription == null) {
+            return null;
+        }
+        if (simulationDescription.x() != end.x - start.x + 1 || simulationDescription.y() != end.y - start.y + 1 || simulationDescription.z() != end.z - start.z + 1) {
+            return null;
+        }
+        if (simulationDescription.passivelyCooled() != coolantPorts.isEmpty() || simulationDescription.defaultModeratorProperties() != airProperties) {
+            return null;
+        }
+        if (simulationDescription.controlRodCount() != controlRods.size()) {
+            return null;
+        }
+        //noinspection ForLoopReplaceableByForEach
+        for (int i = 0; i < controlRods.size(); i++) {
+            BlockPos rodPos = controlRods.get(i).getBlockPos();
+            if (!simulationDescription.isControlRodAt(rodPos.getX() - start.x, rodPos.getZ() - start.z)) {
+                return null;
+            }
+        }
+        final var liveManifolds = new IntOpenHashSet(manifolds.size());
+        //noinspection ForLoopReplaceableByForEach
+        for (int i = 0; i < manifolds.size(); i++) {
+            BlockPos manifoldPos = manifolds.get(i).getBlockPos();
+            liveManifolds.add(simulationDescription.linearIndex(manifoldPos.getX() - start.x, manifoldPos.getY() - start.y, manifoldPos.getZ() - start.z));
+        }
+        for (int index = simulationDescription.nextManifold(0); index != -1; index = simulationDescription.nextManifold(index + 1)) {
+            if (liveManifolds.contains(index)) {
+                continue;
+            }
+            // a removed manifold is only patched out below if a moderator took its place, some other reactor block is nothing the layout can describe
+            final int y = index % simulationDescription.y(), z = (index / simulationDescription.y()) % simulationDescription.z(), x = index / simulationDescription.y() / simulationDescription.z();
+            if (world.getBlockState(new BlockPos(start.x + x, start.y + y, start.z + z)).getBlock() instanceof ReactorBaseBlock) {
+                return null;
+            }
+        }
+        final var changedBlocks = new IntArrayList();
+        //noinspection ForLoopReplaceableByForEach
+        for (int i = 0; i < manifolds.size(); i++) {
+            BlockPos manifoldPos = manifolds.get(i).getBlockPos();
+            final int x = manifoldPos.getX() - start.x, y = manifoldPos.getY() - start.y, z = manifoldPos.getZ() - start.z;
+            if (!simulationDescription.isManifoldAt(x, y, z)) {
+                simulationDescription.setManifold(x, y, z, true);
+                simulationDescription.setModeratorProperties(x, y, z, null);
+                changedBlocks.add(simulationDescription.linearIndex(x, y, z));
+            }
+        }
+        Util.chunkCachedBlockStateIteration(start, end, world, (state, pos) -> {
+            if (!(state.getBlock() instanceof ReactorBaseBlock)) {
+                pos.sub(start);
+                final var properties = ReactorModeratorRegistry.blockModeratorProperties(state.getBlock());
+                if (simulationDescription.isManifoldAt(pos.x, pos.y, pos.z) || simulationDescription.moderatorPropertiesAt(pos.x, pos.y, pos.z) != properties) {
+                    simulationDescription.setManifold(pos.x, pos.y, pos.z, false);
+                    simulationDescription.setModeratorProperties(pos.x, pos.y, pos.z, properties);
+                    changedBlocks.add(simulationDescription.linearIndex(pos.x, pos.y, pos.z));
+                }
+            }
+        });
+        return changedBlocks;
+    }
+    
+    // builds a TimeSlicedReactorSimulation
+    private static final SimulationDescription.Builder FALLBACK_SIMULATION_BUILDER = new SimulationDescription.Builder(false, false, false, false, false, false, false);
+    
+    private static SimulationDescription.Builder simulationBuilder() {
+        return new SimulationDescription.Builder(Config.CONFIG.mode == Config.Mode.EXPERIMENTAL, Config.CONFIG.Reactor.useFullPassSimulation, Config.CONFIG.Reactor.useSampledSimulation, Config.CONFIG.Reactor.allowOffThreadSimulation, Config.CONFIG.Reactor.allowMultiThreadSimulation, Config.CONFIG.Reactor.allowAcceleratedSimulation, Config.CONFIG.Reactor.allowVectorizedSimulation);
+    }
+    
+    private void buildSimulation(SimulationDescription simulationDescription) {
+        // anything still building is for an older layout
+        cancelPendingSimulation();
+        final var simulationBuilder = simulationBuilder();
+        this.simulationBuilder = simulationBuilder;
+        final long asyncVolume = Config.CONFIG.Reactor.ModeSpecific.AsyncConstructionVolume;
+        if (asyncVolume == 0 || (long) simulationDescription.x() * simulationDescription.y() * simulationDescription.z() < asyncVolume) {
+            setSimulation(simulationBuilder.build(simulationDescription));
+            return;
+        }
+        // the reactor sits idle until tick() picks it up, its state waits in simulationData
+        if (simulation != null) {
+            simulationData = simulation.saveState();
+            simulation.release();
+            simulation = null;
+        }
+        if (coolantTank != null) {
+            coolantTankNBT = coolantTank.serializeNBT();
+            coolantTank = null;
+        }
+        final var pendingSimulation = new CompletableFuture<IReactorSimulation>();
+        ReactorSimulationPool.pool().execute(() -> {
+            // cancelled before it got to run
+            if (pendingSimulation.isDone()) {
+                return;
+            }
+            try {
+                final var builtSimulation = simulationBuilder.build(simulationDescription);
+                if (!pendingSimulation.complete(builtSimulation)) {
+                    // cancelled while it was building
+                    builtSimulation.release();
+                }
+            } catch (Throwable e) {
+                pendingSimulation.completeExceptionally(e);
+            }
+        });
+        this.pendingSimulation = pendingSimulation;
+    }
+    
+    private void cancelPendingSimulation() {
+        if (pendingSimulation != null) {
+            pendingSimulation.cancel(false);
+            pendingSimulation = null;
+        }
+    }
+    
+    private void setSimulation(IReactorSimulation newSimulation) {
         // if we already have a simulation, it is the reference
         if(simulation != null){
-            simulationData = simulation.save();
+            simulationData = simulation.saveState();
+            simulation.release();
         }
-        final var simulationBuilder = new SimulationDescription.Builder(Config.CONFIG.mode == Config.Mode.EXPERIMENTAL, Config.CONFIG.Reactor.useFullPassSimulation, Config.CONFIG.Reactor.allowOffThreadSimulation, Config.CONFIG.Reactor.allowMultiThreadSimulation, Config.CONFIG.Reactor.allowAcceleratedSimulation);
-        simulation = simulationBuilder.build(simulationDescription);
+        simulation = newSimulation;
         if (simulationData != null) {
-            simulation.load(simulationData);
+            simulation.loadState(simulationData);
+        } else if (legacySimulationData != null) {
+            simulation.load(legacySimulationData);
         }
+        legacySimulationData = null;
         var simCoolantTank = simulation.coolantTank();
         if (simCoolantTank != null) {
             coolantTank = new ReactorTransitionTank(simCoolantTank);
@@ -399,29 +605,6 @@ public class ReactorMultiblockController extends RectangularMultiblockController
                 coolantTank.deserializeNBT(coolantTankNBT);
             }
         }
-        
-        updateControlRodLevels();
-        collectFuel();
-        
-        int levels = this.maxCoord().y() - this.minCoord().y() - 1;
-        final int rodsPerLevel = fuelRods.size() / levels;
-        fuelRodsByLevel.clear();
-        fuelRodsByLevel.ensureCapacity(levels);
-        for (int i = 0; i < levels; i++) {
-            var newList = new ObjectArrayList<ReactorFuelRodTile>(rodsPerLevel);
-            fuelRodsByLevel.add(newList);
-        }
-        final var levelArrays = fuelRodsByLevel.elements();
-        final int minY = this.minCoord().y() + 1;
-        //noinspection ForLoopReplaceableByForEach
-        for (int i = 0; i < fuelRods.size(); i++) {
-            final var rod = fuelRods.get(i);
-            int rodLevel = rod.getBlockPos().getY();
-            rodLevel -= minY;
-            levelArrays[rodLevel].add(rod);
-        }
-        
-        updateFuelRenderingLevel(true);
     }
     
     @Override
@@ -429,15 +612,41 @@ public class ReactorMultiblockController extends RectangularMultiblockController
         distributeFuel();
         setActive(ReactorActivity.INACTIVE);
         if (simulation != null) {
-            simulationData = simulation.save();
+            simulationData = simulation.saveState();
+            if (simulationDescription != null && simulationBuilder != null) {
+                SimulationCache.put(simulationDescription, simulationBuilder, simulation);
+                // the wrapper would keep reaching into the cached simulation's coolant tank
+                if (coolantTank != null) {
+                    coolantTankNBT = coolantTank.serializeNBT();
+                    coolantTank = null;
+                }
+            } else {
+                simulation.release();
+            }
             simulation = null;
         }
+        simulationDescription = null;
+        simulationBuilder = null;
+        cancelPendingSimulation();
     }
     
     @Nullable
     private IReactorSimulation simulation;
+    // the layout the live simulation was built from and reads its blocks from, patched in place right before updateLayout while the reactor keeps its size and control rods
+    @Nullable
+    private SimulationDescription simulationDescription;
+    // what built the live simulation, SimulationCache only hands it to reactors that would build the same kind
     @Nullable
-    PhosphophylliteCompound simulationData;
+    private SimulationDescription.Builder simulationBuilder;
+    // built off thread for big reactors, swapped in by tick() once done
+    @Nullable
+    private CompletableFuture<IReactorSimulation> pendingSimulation;
+    // see BaseReactorSimulation.saveState
+    @Nullable
+    byte[] simulationData;
+    // saved before simulation state was binary, loaded into the next simulation built, which then writes it back out as binary
+    @Nullable
+    PhosphophylliteCompound legacySimulationData;
     @Nullable
     ReactorTransitionTank coolantTank;
     @Nullable
@@ -463,6 +672,24 @@ public class ReactorMultiblockController extends RectangularMultiblockController
             updateBlockStates();
         }
         
+        if (pendingSimulation != null && pendingSimulation.isDone()) {
+            final var builtSimulation = pendingSimulation;
+            pendingSimulation = null;
+            IReactorSimulation newSimulation;
+            try {
+                newSimulation = builtSimulation.join();
+            } catch (CompletionException e) {
+                // the previous simulation is already gone, fall back to the simplest one rather than leaving the reactor without any
+                BiggerReactors.LOGGER.error("Failed to build reactor simulation off thread, falling back to the time sliced simulation", e.getCause());
+                simulationBuilder = FALLBACK_SIMULATION_BUILDER;
+                newSimulation = FALLBACK_SIMULATION_BUILDER.build(simulationDescription);
+            }
+            setSimulation(newSimulation);
+            updateControlRodLevels();
+            collectFuel();
+            updateFuelRenderingLevel(true);
+        }
+        
         if (simulation == null) {
             return;
         }
@@ -506,12 +733,20 @@ public class ReactorMultiblockController extends RectangularMultiblockController
         
         updateFuelRenderingLevel();
         
-        if (Phosphophyllite.tickNumber() % 2 == 0 || forceDirty) {
+        if (forceDirty || (Phosphophyllite.tickNumber() % 2 == 0 && changedSinceWrite())) {
             forceDirty = false;
             markDirty();
         }
     }
     
+    /**
+     * if write() would write anything different from last time, an idle reactor doesnt need its chunk saved over and over
+     * the coolant wrapper's fluids can only change along with the simulation's coolant amounts, so those cover it
+     */
+    private boolean changedSinceWrite() {
+        return reactorActivity != savedReactorActivity || autoEjectWaste != savedAutoEjectWaste || simulation == null || simulation.changedSince(savedSimulationData);
+    }
+    
     long currentFuelRenderLevel = 0;
     long currentWasteRenderLevel = 0;
     
@@ -817,7 +1052,7 @@ public class ReactorMultiblockController extends RectangularMultiblockController
             return super.getDebugString() +
                            "State: " + reactorActivity.toString() + "\n" +
                            "AutoEjectWaste: " + autoEjectWaste + "\n" +
-                           "Simulation is null" +
+                           (pendingSimulation != null ? "Simulation is building" : "Simulation is null") +
                            "";
         }
         final var battery = simulation.battery();
@@ -851,6 +1086,9 @@ public class ReactorMultiblockController extends RectangularMultiblockController
                                                        "Vapor: " + coolantTank.vaporAmount() + "\n"
                                        ) : ""
                        ) +
+                       simulation.debugString() +
+                       SimulationCache.debugString() +
+                       SharedStructures.debugString() +
                        "";
     }
     
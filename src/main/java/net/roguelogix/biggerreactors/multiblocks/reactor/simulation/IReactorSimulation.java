@@ -1,5 +1,7 @@
 package net.roguelogix.biggerreactors.multiblocks.reactor.simulation;
 
+import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.objects.Reference2LongMap;
 import net.roguelogix.biggerreactors.registries.FluidTransitionRegistry;
 import net.roguelogix.biggerreactors.registries.ReactorModeratorRegistry;
 import net.roguelogix.phosphophyllite.serialization.IPhosphophylliteSerializable;
@@ -41,6 +43,62 @@ public interface IReactorSimulation extends IPhosphophylliteSerializable {
         return false;
     }
     
+    /**
+     * applies blocks changed in the description this simulation was built from, without rebuilding the simulation
+     * changedBlocks are linear indices into the description, see SimulationDescription.linearIndex
+     *
+     * @return false if the changes cant be applied in place, the simulation then needs to be rebuilt from the description
+     */
+    default boolean updateLayout(SimulationDescription simulationDescription, IntList changedBlocks) {
+        return false;
+    }
+    
+    /**
+     * what save() holds, as the versioned binary written to the world and handed between simulations, read back with loadState
+     */
+    byte[] saveState();
+    
+    /**
+     * @throws IllegalArgumentException if state isnt something saveState wrote
+     */
+    void loadState(byte[] state);
+    
+    /**
+     * if the simulation has moved on from written, the state last written to the world, by enough to be worth writing again
+     * saveState() always hands back the current state, only this allows for small differences
+     */
+    default boolean changedSince(@Nullable byte[] written) {
+        return true;
+    }
+    
+    /**
+     * rough size in bytes of what the simulation keeps allocated, for bounding SimulationCache
+     * structures shared with other simulations (see SharedStructures) go into shared with their size instead, so they are only counted once
+     */
+    default long footprintBytes(Reference2LongMap<Object> shared) {
+        return 0;
+    }
+    
+    /**
+     * stops anything the simulation has queued up to run in the background, for when it stops being ticked
+     */
+    default void cancelBackgroundWork() {
+    }
+    
+    /**
+     * frees native memory the simulation holds, once it's dropped for good, nothing may be called on it after this
+     * simulations only dropped without it still free it once they are unreachable, just later
+     */
+    default void release() {
+    }
+    
+    /**
+     * extra simulation specific lines for the reactor's debug output, each ending in a newline
+     */
+    default String debugString() {
+        return "";
+    }
+    
     interface ControlRod {
         double insertion();
         
@@ -73,17 +131,17 @@ public interface IReactorSimulation extends IPhosphophylliteSerializable {
         long liquidAmount();
         
         long vaporAmount();
-    
+        
         long perSideCapacity();
-    
+        
         void setModeratorProperties(ReactorModeratorRegistry.IModeratorProperties moderatorProperties);
-    
+        
         void setTransitionProperties(FluidTransitionRegistry.ITransitionProperties transitionProperties);
-    
+        
         long transitionedLastTick();
-    
+        
         long maxTransitionedLastTick();
-    
+        
         long rfTransferredLastTick();
     }
     
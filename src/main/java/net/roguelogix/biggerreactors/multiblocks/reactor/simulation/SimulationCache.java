@@ -0,0 +1,170 @@
+package net.roguelogix.biggerreactors.multiblocks.reactor.simulation;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectLinkedOpenHashSet;
+import it.unimi.dsi.fastutil.objects.Reference2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Reference2LongOpenHashMap;
+import net.minecraftforge.common.MinecraftForge;
+import net.minecraftforge.event.server.ServerStoppedEvent;
+import net.roguelogix.biggerreactors.Config;
+import net.roguelogix.phosphophyllite.registry.OnModLoad;
+import net.roguelogix.phosphophyllite.util.NonnullDefault;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Simulations of disassembled reactors, so a reactor that comes back with the exact same layout (chunks along its edge unloading and reloading)
+ * picks its simulation back up instead of building a new one
+ * <p>
+ * Keyed by SimulationDescription.contentHash, and bounded by IReactorSimulation.footprintBytes plus the description, the one cached longest ago goes first
+ * Structures the cached simulations share are only counted once
+ * A simulation taken out is removed, so only one reactor ever has it, and gets its state from load like a new one would
+ */
+@ParametersAreNonnullByDefault
+@NonnullDefault
+public final class SimulationCache {
+    
+    public static final class Entry {
+        // what the simulation was built from, or last had its layout updated to, its palette order is what the simulation expects
+        public final SimulationDescription description;
+        public final IReactorSimulation simulation;
+        private final SimulationDescription.Builder builder;
+        private final long hash;
+        // not counting shared
+        private final long footprint;
+        private final Reference2LongOpenHashMap<Object> shared;
+        
+        private Entry(SimulationDescription description, IReactorSimulation simulation, SimulationDescription.Builder builder, long hash, long footprint, Reference2LongOpenHashMap<Object> shared) {
+            this.description = description;
+            this.simulation = simulation;
+            this.builder = builder;
+            this.hash = hash;
+            this.footprint = footprint;
+            this.shared = shared;
+        }
+    }
+    
+    private static final Long2ObjectOpenHashMap<ObjectArrayList<Entry>> entries = new Long2ObjectOpenHashMap<>();
+    // oldest first, entries leave when taken so this is also least recently used first
+    private static final ObjectLinkedOpenHashSet<Entry> order = new ObjectLinkedOpenHashSet<>();
+    // how many entries hold each shared structure, it's counted in the footprint while any do
+    private static final Reference2IntOpenHashMap<Object> sharedReferences = new Reference2IntOpenHashMap<>();
+    private static long footprint = 0;
+    
+    private SimulationCache() {
+    }
+    
+    @OnModLoad
+    private static void onModLoad() {
+        MinecraftForge.EVENT_BUS.addListener(SimulationCache::onServerStopped);
+    }
+    
+    private static void onServerStopped(ServerStoppedEvent event) {
+        clear();
+    }
+    
+    private static long capacity() {
+        return Config.CONFIG.Reactor.ModeSpecific.SimulationCacheMegabytes * 1024 * 1024;
+    }
+    
+    /**
+     * the description must not be changed after this, it belongs to the cache until the entry is taken back out
+     * the simulation belongs to it too, it's released once it doesn't fit, or is pushed out
+     *
+     * @param builder what built the simulation, it is only handed out again for the same one
+     */
+    public static void put(SimulationDescription description, SimulationDescription.Builder builder, IReactorSimulation simulation) {
+        // nothing ticks it while its cached
+        simulation.cancelBackgroundWork();
+        final long capacity = capacity();
+        final var shared = new Reference2LongOpenHashMap<Object>();
+        final long entryFootprint = simulation.footprintBytes(shared) + description.footprintBytes();
+        long sharedFootprint = 0;
+        for (var sharedEntry : shared.reference2LongEntrySet()) {
+            sharedFootprint += sharedEntry.getLongValue();
+        }
+        if (capacity == 0 || entryFootprint + sharedFootprint > capacity) {
+            simulation.release();
+            return;
+        }
+        final var entry = new Entry(description, simulation, builder, description.contentHash(), entryFootprint, shared);
+        synchronized (entries) {
+            entries.computeIfAbsent(entry.hash, hash -> new ObjectArrayList<>()).add(entry);
+            order.add(entry);
+            footprint += entryFootprint;
+            for (var sharedEntry : shared.reference2LongEntrySet()) {
+                if (sharedReferences.addTo(sharedEntry.getKey(), 1) == 0) {
+                    footprint += sharedEntry.getLongValue();
+                }
+            }
+            while (footprint > capacity) {
+                final var oldest = order.first();
+                remove(oldest);
+                oldest.simulation.release();
+            }
+        }
+    }
+    
+    /**
+     * @return a simulation of the same layout, built by the same builder, null if there is none
+     */
+    @Nullable
+    public static Entry take(SimulationDescription description, SimulationDescription.Builder builder) {
+        synchronized (entries) {
+            if (entries.isEmpty()) {
+                return null;
+            }
+        }
+        final long hash = description.contentHash();
+        synchronized (entries) {
+            final var candidates = entries.get(hash);
+            if (candidates == null) {
+                return null;
+            }
+            for (int i = 0; i < candidates.size(); i++) {
+                final var entry = candidates.get(i);
+                if (entry.builder.equals(builder) && entry.description.contentEquals(description)) {
+                    remove(entry);
+                    return entry;
+                }
+            }
+            return null;
+        }
+    }
+    
+    private static void remove(Entry entry) {
+        final var candidates = entries.get(entry.hash);
+        candidates.remove(entry);
+        if (candidates.isEmpty()) {
+            entries.remove(entry.hash);
+        }
+        order.remove(entry);
+        footprint -= entry.footprint;
+        for (var sharedEntry : entry.shared.reference2LongEntrySet()) {
+            if (sharedReferences.addTo(sharedEntry.getKey(), -1) == 1) {
+                sharedReferences.removeInt(sharedEntry.getKey());
+                footprint -= sharedEntry.getLongValue();
+            }
+        }
+    }
+    
+    public static void clear() {
+        synchronized (entries) {
+            for (var entry : order) {
+                entry.simulation.release();
+            }
+            entries.clear();
+            order.clear();
+            sharedReferences.clear();
+            footprint = 0;
+        }
+    }
+    
+    public static String debugString() {
+        synchronized (entries) {
+            return "SimulationCache: " + order.size() + " (" + footprint / 1024 + "KB)\n";
+        }
+    }
+}
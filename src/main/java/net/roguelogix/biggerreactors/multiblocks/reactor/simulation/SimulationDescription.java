@@ -1,9 +1,12 @@
 package net.roguelogix.biggerreactors.multiblocks.reactor.simulation;
 
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.Reference2IntOpenHashMap;
 import net.roguelogix.biggerreactors.Config;
 import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.accellerated.ocl.SingleQueueOpenCL12Simulation;
 import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.accellerated.ocl.CLUtil;
 import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.cpu.FullPassReactorSimulation;
+import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.cpu.SampledReactorSimulation;
 import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.cpu.TimeSlicedReactorSimulation;
 import net.roguelogix.biggerreactors.registries.ReactorModeratorRegistry;
 import net.roguelogix.phosphophyllite.serialization.IPhosphophylliteSerializable;
@@ -14,6 +17,8 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
@@ -32,32 +37,61 @@ public class SimulationDescription implements IPhosphophylliteSerializable {
     @Nonnull
     // accessing this constant may cause a classloading crash when loaded w/o forge, need to check that and move stuff as needed
     ReactorModeratorRegistry.IModeratorProperties defaultModeratorProperties = ReactorModeratorRegistry.ModeratorProperties.EMPTY_MODERATOR;
+    // index 0 is no moderator, the rest are each distinct moderator set, only ever appended to
+    final ObjectArrayList<ReactorModeratorRegistry.IModeratorProperties> moderatorPalette = new ObjectArrayList<>();
+    final Reference2IntOpenHashMap<ReactorModeratorRegistry.IModeratorProperties> moderatorPaletteIndices = new Reference2IntOpenHashMap<>();
+    // palette index of every block, column major, see linearIndex
     @Nullable
-    ReactorModeratorRegistry.IModeratorProperties[][][] moderatorProperties = null;
+    short[] moderatorIndices = null;
     @Nullable
-    boolean[][][] manifoldLocations = null;
+    long[] manifoldLocations = null;
     int manifoldCount = 0;
+    // bit (x * z) + z
     @Nullable
-    boolean[][] controlRodLocations = null;
+    long[] controlRodLocations = null;
     int controlRodCount = 0;
     boolean passivelyCooled = false;
     double ambientTemperature = 273.15;
     
+    {
+        moderatorPalette.add(null);
+        moderatorPaletteIndices.defaultReturnValue(-1);
+    }
+    
     public void setSize(int x, int y, int z) {
         if (x <= 0 || y <= 0 || z <= 0) {
             throw new IllegalArgumentException("all sizes must be greater than zero");
         }
+        if (moderatorIndices != null && this.x == x && this.y == y && this.z == z) {
+            return;
+        }
         this.x = x;
         this.y = y;
         this.z = z;
-        if (moderatorProperties == null || moderatorProperties.length < x || moderatorProperties[0].length < y || moderatorProperties[0][0].length < z) {
-            moderatorProperties = new ReactorModeratorRegistry.IModeratorProperties[x][y][z];
-        }
-        if (manifoldLocations == null || manifoldLocations.length < x || manifoldLocations[0].length < y || manifoldLocations[0][0].length < z) {
-            manifoldLocations = new boolean[x][y][z];
-        }
-        if (controlRodLocations == null || controlRodLocations.length < x || controlRodLocations[0].length < z) {
-            controlRodLocations = new boolean[x][z];
+        // the layout depends on the size, so nothing already set carries over
+        moderatorIndices = new short[x * y * z];
+        manifoldLocations = new long[(x * y * z + 63) >> 6];
+        manifoldCount = 0;
+        controlRodLocations = new long[(x * z + 63) >> 6];
+        controlRodCount = 0;
+    }
+    
+    /**
+     * Index of the block at x, y, z in the per block arrays, blocks in the same column are next to each other
+     */
+    public int linearIndex(int x, int y, int z) {
+        return ((x * this.z) + z) * this.y + y;
+    }
+    
+    private static boolean getBit(long[] bits, int index) {
+        return (bits[index >> 6] & (1L << index)) != 0;
+    }
+    
+    private static void setBit(long[] bits, int index, boolean value) {
+        if (value) {
+            bits[index >> 6] |= 1L << index;
+        } else {
+            bits[index >> 6] &= ~(1L << index);
         }
     }
     
@@ -66,19 +100,31 @@ public class SimulationDescription implements IPhosphophylliteSerializable {
     }
     
     public void setModeratorProperties(int x, int y, int z, @Nullable ReactorModeratorRegistry.IModeratorProperties properties) {
-        if (moderatorProperties == null) {
+        if (moderatorIndices == null) {
             if (properties == null) {
                 return;
             }
             throw new IllegalStateException("Size must be set before adding moderators");
         }
-        if (x < 0 || x >= moderatorProperties.length || y < 0 || y >= moderatorProperties[0].length || z < 0 || z >= moderatorProperties[0][0].length) {
+        if (x < 0 || x >= this.x || y < 0 || y >= this.y || z < 0 || z >= this.z) {
             if (properties == null) {
                 return;
             }
             throw new IndexOutOfBoundsException("Attempt to add moderator outside of reactor bounds");
         }
-        moderatorProperties[x][y][z] = properties;
+        int paletteIndex = 0;
+        if (properties != null) {
+            paletteIndex = moderatorPaletteIndices.getInt(properties);
+            if (paletteIndex == -1) {
+                paletteIndex = moderatorPalette.size();
+                if (paletteIndex > Short.MAX_VALUE) {
+                    throw new IllegalStateException("Too many distinct moderators");
+                }
+                moderatorPalette.add(properties);
+                moderatorPaletteIndices.put(properties, paletteIndex);
+            }
+        }
+        moderatorIndices[linearIndex(x, y, z)] = (short) paletteIndex;
     }
     
     public void setControlRod(int x, int z, boolean isControlRod) {
@@ -88,16 +134,17 @@ public class SimulationDescription implements IPhosphophylliteSerializable {
             }
             throw new IllegalStateException("Size must be set before adding control rods");
         }
-        if (x < 0 || x >= controlRodLocations.length || z < 0 || z >= controlRodLocations[0].length) {
+        if (x < 0 || x >= this.x || z < 0 || z >= this.z) {
             if (!isControlRod) {
                 return;
             }
             throw new IndexOutOfBoundsException("Attempt to add control rod outside of reactor bounds");
         }
-        if (controlRodLocations[x][z] != isControlRod) {
+        final int index = (x * this.z) + z;
+        if (getBit(controlRodLocations, index) != isControlRod) {
             controlRodCount += isControlRod ? 1 : -1;
         }
-        controlRodLocations[x][z] = isControlRod;
+        setBit(controlRodLocations, index, isControlRod);
     }
     
     public void setManifold(int x, int y, int z, boolean manifold) {
@@ -107,16 +154,17 @@ public class SimulationDescription implements IPhosphophylliteSerializable {
             }
             throw new IllegalStateException("Size must be set before adding manifolds");
         }
-        if (x < 0 || x >= manifoldLocations.length || y < 0 || y >= manifoldLocations[0].length || z < 0 || z >= manifoldLocations[0][0].length) {
+        if (x < 0 || x >= this.x || y < 0 || y >= this.y || z < 0 || z >= this.z) {
             if (!manifold) {
                 return;
             }
             throw new IndexOutOfBoundsException("Attempt to add manifold outside of reactor bounds");
         }
-        if (manifoldLocations[x][y][z] != manifold) {
+        final int index = linearIndex(x, y, z);
+        if (getBit(manifoldLocations, index) != manifold) {
             manifoldCount += manifold ? 1 : -1;
         }
-        manifoldLocations[x][y][z] = manifold;
+        setBit(manifoldLocations, index, manifold);
     }
     
     public void setPassivelyCooled(boolean passivelyCooled) {
@@ -127,32 +175,35 @@ public class SimulationDescription implements IPhosphophylliteSerializable {
         this.ambientTemperature = ambientTemperature;
     }
     
-    public record Builder(boolean experimental, boolean fullPass, boolean allowOffThread, boolean allowMultiThread, boolean allowAccelerated) {
+    public record Builder(boolean experimental, boolean fullPass, boolean sampled, boolean allowOffThread, boolean allowMultiThread, boolean allowAccelerated, boolean allowVectorized) {
         
         public IReactorSimulation build(SimulationDescription description) {
             description.ensureValid();
-    
+            
+            final boolean vectorized = allowVectorized && FullPassReactorSimulation.VECTOR_API_AVAILABLE;
+            
             if (experimental) {
                 return new SingleQueueOpenCL12Simulation(description);
             }
             if (!fullPass) {
-                return new TimeSlicedReactorSimulation(description);
+                return sampled ? new SampledReactorSimulation(description) : new TimeSlicedReactorSimulation(description);
             }
             
             var rodMultiple = description.controlRodCount / Config.CONFIG.Reactor.ModeSpecific.ControlRodBatchSize;
             
-            if (allowAccelerated && rodMultiple >= 16) {
+            // the OpenCL kernel reads moderator indices a byte at a time, the palette is at least as long as the moderators in use
+            if (allowAccelerated && rodMultiple >= 16 && description.moderatorPalette.size() <= 128) {
                 if (CLUtil.available) {
                     return new SingleQueueOpenCL12Simulation(description);
                 }
             }
             if (allowMultiThread && rodMultiple >= 2) {
-                return new FullPassReactorSimulation.MultiThreaded(description, false);
+                return new FullPassReactorSimulation.MultiThreaded(description, false, vectorized);
             }
             if (allowOffThread) {
-                return new FullPassReactorSimulation.MultiThreaded(description, true);
+                return new FullPassReactorSimulation.MultiThreaded(description, true, vectorized);
             }
-            return new FullPassReactorSimulation(description);
+            return new FullPassReactorSimulation(description, vectorized);
         }
     }
     
@@ -160,7 +211,7 @@ public class SimulationDescription implements IPhosphophylliteSerializable {
         if (controlRodLocations == null) {
             throw new IllegalArgumentException();
         }
-        if (moderatorProperties == null) {
+        if (moderatorIndices == null) {
             throw new IllegalArgumentException();
         }
         if (manifoldLocations == null) {
@@ -190,7 +241,7 @@ public class SimulationDescription implements IPhosphophylliteSerializable {
     
     public boolean isControlRodAt(int x, int z) {
         assert controlRodLocations != null;
-        return controlRodLocations[x][z];
+        return getBit(controlRodLocations, (x * this.z) + z);
     }
     
     public boolean passivelyCooled() {
@@ -201,25 +252,137 @@ public class SimulationDescription implements IPhosphophylliteSerializable {
         return manifoldCount;
     }
     
+    @Nullable
     public ReactorModeratorRegistry.IModeratorProperties moderatorPropertiesAt(int x, int y, int z) {
-        assert moderatorProperties != null;
-        return moderatorProperties[x][y][z];
+        assert moderatorIndices != null;
+        return moderatorPalette.get(moderatorIndices[linearIndex(x, y, z)]);
     }
     
     public boolean isManifoldAt(int x, int y, int z) {
         assert manifoldLocations != null;
-        return manifoldLocations[x][y][z];
+        return getBit(manifoldLocations, linearIndex(x, y, z));
+    }
+    
+    /**
+     * Palette moderatorIndexAt indexes into, entry 0 is null, for no moderator
+     */
+    public List<ReactorModeratorRegistry.IModeratorProperties> moderatorPalette() {
+        return Collections.unmodifiableList(moderatorPalette);
+    }
+    
+    public int moderatorIndexAt(int linearIndex) {
+        assert moderatorIndices != null;
+        return moderatorIndices[linearIndex];
+    }
+    
+    public boolean isManifoldAt(int linearIndex) {
+        assert manifoldLocations != null;
+        return getBit(manifoldLocations, linearIndex);
+    }
+    
+    /**
+     * linear index of the first manifold at or after fromIndex, -1 if there are none
+     */
+    public int nextManifold(int fromIndex) {
+        assert manifoldLocations != null;
+        int word = fromIndex >> 6;
+        if (word >= manifoldLocations.length) {
+            return -1;
+        }
+        long bits = manifoldLocations[word] & (-1L << fromIndex);
+        while (bits == 0) {
+            if (++word == manifoldLocations.length) {
+                return -1;
+            }
+            bits = manifoldLocations[word];
+        }
+        return (word << 6) + Long.numberOfTrailingZeros(bits);
+    }
+    
+    /**
+     * rough size in bytes of the per block palette indices, the bitsets and the palette
+     */
+    public long footprintBytes() {
+        long bytes = moderatorPalette.size() * 8L * 3;
+        if (moderatorIndices != null) {
+            bytes += moderatorIndices.length * 2L;
+        }
+        if (manifoldLocations != null) {
+            bytes += manifoldLocations.length * 8L;
+        }
+        if (controlRodLocations != null) {
+            bytes += controlRodLocations.length * 8L;
+        }
+        return bytes;
     }
     
     public double ambientTemperature(){
         return ambientTemperature;
     }
     
+    /**
+     * Hash of the layout, equal for descriptions that contentEquals each other
+     * <p>
+     * Moderators are compared by identity, same as the palette does, so descriptions from before a registry reload dont match
+     */
+    public long contentHash() {
+        ensureValid();
+        assert moderatorIndices != null && manifoldLocations != null && controlRodLocations != null;
+        long hash = mix(x, y);
+        hash = mix(hash, z);
+        hash = mix(hash, passivelyCooled ? 1 : 0);
+        hash = mix(hash, Double.doubleToLongBits(ambientTemperature));
+        hash = mix(hash, System.identityHashCode(defaultModeratorProperties));
+        // palette indices depend on the order moderators were first set in, so hash what they point to
+        final long[] paletteHashes = new long[moderatorPalette.size()];
+        for (int i = 1; i < paletteHashes.length; i++) {
+            paletteHashes[i] = System.identityHashCode(moderatorPalette.get(i));
+        }
+        for (short moderatorIndex : moderatorIndices) {
+            hash = mix(hash, paletteHashes[moderatorIndex]);
+        }
+        for (long bits : manifoldLocations) {
+            hash = mix(hash, bits);
+        }
+        for (long bits : controlRodLocations) {
+            hash = mix(hash, bits);
+        }
+        return hash;
+    }
+    
+    private static long mix(long hash, long value) {
+        return (hash ^ value) * 0x9E3779B97F4A7C15L + 0x632BE59BD9B4E019L;
+    }
+    
+    /**
+     * If both describe the same reactor, regardless of the order moderators were added to the palettes in
+     */
+    public boolean contentEquals(SimulationDescription other) {
+        if (other == this) {
+            return true;
+        }
+        ensureValid();
+        other.ensureValid();
+        if (x != other.x || y != other.y || z != other.z || passivelyCooled != other.passivelyCooled || ambientTemperature != other.ambientTemperature || defaultModeratorProperties != other.defaultModeratorProperties) {
+            return false;
+        }
+        if (manifoldCount != other.manifoldCount || controlRodCount != other.controlRodCount || !Arrays.equals(manifoldLocations, other.manifoldLocations) || !Arrays.equals(controlRodLocations, other.controlRodLocations)) {
+            return false;
+        }
+        assert moderatorIndices != null && other.moderatorIndices != null;
+        for (int i = 0; i < moderatorIndices.length; i++) {
+            if (moderatorPalette.get(moderatorIndices[i]) != other.moderatorPalette.get(other.moderatorIndices[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
     @Override
     @Nullable
     public PhosphophylliteCompound save() {
         final var compound = new PhosphophylliteCompound();
-        if (moderatorProperties == null || manifoldLocations == null || controlRodLocations == null) {
+        if (moderatorIndices == null || manifoldLocations == null || controlRodLocations == null) {
             return null;
         }
         ArrayList<ReactorModeratorRegistry.IModeratorProperties> moderatorProperties = new ArrayList<>();
@@ -234,7 +397,7 @@ public class SimulationDescription implements IPhosphophylliteSerializable {
                 ArrayList<Integer> moderatorIndexesXY = new ArrayList<>();
                 ArrayList<Boolean> manifoldLocationsXY = new ArrayList<>();
                 for (int k = 0; k < z; k++) {
-                    ReactorModeratorRegistry.IModeratorProperties properties = this.moderatorProperties[i][j][k];
+                    ReactorModeratorRegistry.IModeratorProperties properties = moderatorPropertiesAt(i, j, k);
                     if (properties == null) {
                         moderatorIndexesXY.add(-1);
                     } else {
@@ -245,13 +408,13 @@ public class SimulationDescription implements IPhosphophylliteSerializable {
                         }
                         moderatorIndexesXY.add(index);
                     }
-                    manifoldLocationsXY.add(this.manifoldLocations[i][j][k]);
+                    manifoldLocationsXY.add(isManifoldAt(i, j, k));
                 }
                 moderatorIndexesX.add(moderatorIndexesXY);
                 manifoldLocationsX.add(manifoldLocationsXY);
             }
             for (int j = 0; j < z; j++) {
-                controlRodLocationsX.add(this.controlRodLocations[i][j]);
+                controlRodLocationsX.add(isControlRodAt(i, j));
             }
             moderatorIndexes.add(moderatorIndexesX);
             manifoldLocations.add(manifoldLocationsX);
@@ -243,7 +243,7 @@ public class CLUtil {
                 program1 = clCreateProgramWithSource(context1, programSource, intBuffer);
                 checkReturnCode(intBuffer.get(0));
                 LOGGER.info("Building CL program");
-                int returnCode = clBuildProgram(program1, null, String.format("-DMAX_RAY_STEPS=%d " + (debug ? "-cl-opt-disable" : "-cl-fast-relaxed-math"), Config.CONFIG.Reactor.IrradiationDistance * 2), null, 0);
+                int returnCode = clBuildProgram(program1, null, String.format("-DMAX_RAY_STEPS=%d " + (debug ? "-cl-opt-disable" : "-cl-fast-relaxed-math"), Config.CONFIG.Reactor.irradiationDistance() * 2), null, 0);
                 if (returnCode == CL_BUILD_PROGRAM_FAILURE) {
                     var pointerBuf = stack.mallocPointer(1);
                     for (Long device : devices) {
@@ -1,17 +1,18 @@
 package net.roguelogix.biggerreactors.multiblocks.reactor.simulation.accellerated.ocl;
 
+import it.unimi.dsi.fastutil.ints.IntList;
 import net.roguelogix.biggerreactors.Config;
 import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.SimulationDescription;
 import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.base.ModeratorCache;
 import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.base.SimUtil;
 import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.cpu.FullPassReactorSimulation;
+import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.cpu.ModeratorIndices;
 import org.lwjgl.PointerBuffer;
 import org.lwjgl.system.MemoryStack;
 import org.lwjgl.system.MemoryUtil;
 
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
-import java.util.ArrayList;
 
 import static net.roguelogix.biggerreactors.multiblocks.reactor.simulation.accellerated.ocl.CLUtil.*;
 import static org.lwjgl.opencl.CL12.*;
@@ -53,7 +54,11 @@ public class SingleQueueOpenCL12Simulation extends FullPassReactorSimulation {
     private final PointerBuffer rayReductionGlobalWorkSize = clUtil.allocPointer(3);
     
     public SingleQueueOpenCL12Simulation(SimulationDescription simulationDescription) {
-        super(simulationDescription);
+        // the kernel reads a byte per block, so never packed
+        super(simulationDescription, false, false, true);
+        if (moderatorIndices.width != ModeratorIndices.BYTE_WIDTH) {
+            throw new IllegalArgumentException("OpenCL reactor simulations only support 128 moderator types");
+        }
     
         try (var stack = MemoryStack.stackPush()) {
             final var returnCode = stack.mallocInt(1);
@@ -63,7 +68,7 @@ public class SingleQueueOpenCL12Simulation extends FullPassReactorSimulation {
             queue = clUtil.createCommandQueue(CLUtil.nextDevice(), returnCode);
             
     
-            totalRayCount = SimUtil.rays.size();
+            totalRayCount = SimUtil.rayCount;
             raysPerBatch = totalRayCount / 8; // TODO: make this variable
             batches = totalRayCount / raysPerBatch;
             
@@ -78,19 +83,17 @@ public class SingleQueueOpenCL12Simulation extends FullPassReactorSimulation {
                     throw new IllegalStateException("Memory map failed");
                 }
                 final var mappedRayIntBuffer = mappedRayBuffer.asIntBuffer();
-                final var raySteps = new ArrayList<SimUtil.RayStep>();
+                final int totalRayStepCount = SimUtil.rayStepStarts[totalRayCount];
     
                 for (int i = 0; i < totalRayCount; i++) {
-                    final var ray = SimUtil.rays.get(i);
-                    mappedRayIntBuffer.put(i * 2, raySteps.size());
-                    mappedRayIntBuffer.put(i * 2 + 1, ray.size());
-                    raySteps.addAll(ray);
+                    mappedRayIntBuffer.put(i * 2, SimUtil.rayStepStarts[i]);
+                    mappedRayIntBuffer.put(i * 2 + 1, SimUtil.rayStepStarts[i + 1] - SimUtil.rayStepStarts[i]);
                 }
     
                 clEnqueueUnmapMemObject(queue, rayBuffer, mappedRayBuffer, null, null);
                 
-                final long rayStepBuffer = clUtil.createCLBuffer(CL_MEM_READ_ONLY | CL_MEM_HOST_WRITE_ONLY, raySteps.size() * CLUtil.SIZEOF_RAY_STEP, returnCode);
-                final var mappedRayStepBuffer = clEnqueueMapBuffer(queue, rayStepBuffer, true, CL_MAP_WRITE_INVALIDATE_REGION, 0, (long) raySteps.size() * 4 * 4, null, null, returnCode, null);
+                final long rayStepBuffer = clUtil.createCLBuffer(CL_MEM_READ_ONLY | CL_MEM_HOST_WRITE_ONLY, totalRayStepCount * CLUtil.SIZEOF_RAY_STEP, returnCode);
+                final var mappedRayStepBuffer = clEnqueueMapBuffer(queue, rayStepBuffer, true, CL_MAP_WRITE_INVALIDATE_REGION, 0, (long) totalRayStepCount * 4 * 4, null, null, returnCode, null);
                 checkReturnCode(returnCode.get(0));
                 if (mappedRayStepBuffer == null) {
                     throw new IllegalStateException("Memory map failed");
@@ -98,12 +101,11 @@ public class SingleQueueOpenCL12Simulation extends FullPassReactorSimulation {
                 final var mappedRayStepFloatBuffer = mappedRayStepBuffer.asFloatBuffer();
                 final var mappedRayStepIntBuffer = mappedRayStepBuffer.asIntBuffer();
     
-                for (int i = 0; i < raySteps.size(); i++) {
-                    final var step = raySteps.get(i);
-                    mappedRayStepFloatBuffer.put(i * 4, (float) step.length);
-                    mappedRayStepIntBuffer.put(i * 4 + 1, step.offset.x);
-                    mappedRayStepIntBuffer.put(i * 4 + 2, step.offset.y);
-                    mappedRayStepIntBuffer.put(i * 4 + 3, step.offset.z);
+                for (int i = 0; i < totalRayStepCount; i++) {
+                    mappedRayStepFloatBuffer.put(i * 4, (float) SimUtil.rayStepLengths[i]);
+                    mappedRayStepIntBuffer.put(i * 4 + 1, SimUtil.rayStepOffsets[i * 3]);
+                    mappedRayStepIntBuffer.put(i * 4 + 2, SimUtil.rayStepOffsets[i * 3 + 1]);
+                    mappedRayStepIntBuffer.put(i * 4 + 3, SimUtil.rayStepOffsets[i * 3 + 2]);
                 }
     
                 clEnqueueUnmapMemObject(queue, rayStepBuffer, mappedRayStepBuffer, null, null);
@@ -143,7 +145,7 @@ public class SingleQueueOpenCL12Simulation extends FullPassReactorSimulation {
                     for (int j = 0; j < z; j++) {
                         for (int k = 0; k < y; k++) {
                             final int moderatorIndexIndex = (((i * z) + j) * y) + k;
-                            mappedModeratorIndexBuffer.put(moderatorIndexIndex, getModeratorIndex(moderatorIndexIndex));
+                            mappedModeratorIndexBuffer.put(moderatorIndexIndex, (byte) getModeratorIndex(moderatorIndexIndex));
                         }
                     }
                 }
@@ -197,7 +199,7 @@ public class SingleQueueOpenCL12Simulation extends FullPassReactorSimulation {
                 argLongBuffer.put(0, controlRodInsertionsBuffer);
                 clSetKernelArg(simKernel, 7, argLongBuffer);
                 // localInsertions
-                clSetKernelArg(simKernel, 8, (long) (Math.pow(Config.CONFIG.Reactor.IrradiationDistance * 2 + 1, 2) * 4));
+                clSetKernelArg(simKernel, 8, (long) (Math.pow(Config.CONFIG.Reactor.irradiationDistance() * 2 + 1, 2) * 4));
                 
                 // rodRayInfosGlobal
                 argLongBuffer.put(0, rodRayInfoBuffer);
@@ -239,6 +241,12 @@ public class SingleQueueOpenCL12Simulation extends FullPassReactorSimulation {
         return true;
     }
     
+    @Override
+    public boolean updateLayout(SimulationDescription simulationDescription, IntList changedBlocks) {
+        // the layout only exists on the device, uploaded once
+        return false;
+    }
+    
     @Override
     protected void startNextRadiate() {
         if (fuelTank.fuel() <= 0) {
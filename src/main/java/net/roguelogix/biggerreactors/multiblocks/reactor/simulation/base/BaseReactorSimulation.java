@@ -1,5 +1,7 @@
 package net.roguelogix.biggerreactors.multiblocks.reactor.simulation.base;
 
+import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.objects.Reference2LongMap;
 import net.roguelogix.biggerreactors.Config;
 import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.IReactorSimulation;
 import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.SimulationDescription;
@@ -11,19 +13,36 @@ import net.roguelogix.phosphophyllite.util.HeatBody;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 public abstract class BaseReactorSimulation implements IReactorSimulation {
     
     protected final int x, y, z;
     protected final ReactorModeratorRegistry.IModeratorProperties defaultModeratorProperties;
-    protected final ReactorModeratorRegistry.IModeratorProperties[][][] moderatorProperties;
+    // fuel rods, the default moderator, and manifolds have fixed palette slots, the description's moderators come after them
+    protected static final short FUEL_ROD_PALETTE_INDEX = 0;
+    protected static final short DEFAULT_PALETTE_INDEX = 1;
+    protected static final short MANIFOLD_PALETTE_INDEX = 2;
+    protected static final short DESCRIPTION_PALETTE_OFFSET = 2;
+    // null for fuel rods, manifolds are the coolant tank, grows if a layout update brings in a new moderator
+    protected ReactorModeratorRegistry.IModeratorProperties[] moderatorPalette;
+    // the controller's, blocks are read from it rather than copied, it only changes right before an updateLayout call
+    protected SimulationDescription simulationDescription;
     protected final SimUtil.ControlRod[][] controlRodsXZ;
     protected final SimUtil.ControlRod[] controlRods;
+    // simulations that follow SimulationFidelity swap this between ticks
+    protected RayProgram rayProgram;
+    private final RayProgram[] rayPrograms = new RayProgram[SimUtil.RAY_TABLE_LEVELS];
     
-    protected final double fuelToCasingRFKT;
-    protected final double fuelToManifoldSurfaceArea;
-    protected final double stackToCoolantSystemRFKT;
+    protected double fuelToCasingRFKT;
+    protected double fuelToManifoldSurfaceArea;
+    protected double stackToCoolantSystemRFKT;
     protected final double casingToAmbientRFKT;
+    // before the config multipliers
+    private double fuelToCasingConductivity;
+    private double coolantSystemSurfaceArea;
     
     protected final HeatBody fuelHeat = new HeatBody();
     protected final HeatBody stackHeat = new HeatBody();
@@ -39,14 +58,24 @@ public abstract class BaseReactorSimulation implements IReactorSimulation {
     
     protected double fuelFertility = 1;
     
+    // first byte of saveState, bump when what follows it changes
+    private static final byte STATE_VERSION = 1;
+    // second byte, the optional parts that follow the fuel tank
+    private static final byte STATE_COOLANT_TANK = 1;
+    private static final byte STATE_BATTERY = 2;
+    // fertility, fuel heat, stack heat
+    private static final int STATE_HEAT_BYTES = 24;
+    // heats and fertility creep towards their resting values for hours after a reactor goes idle, relative differences under this arent worth writing out
+    // only for changedSince, saveState always writes the current values
+    private static final double SAVE_TOLERANCE = 1e-4;
+    
     protected BaseReactorSimulation(SimulationDescription simulationDescription) {
         x = simulationDescription.x();
         y = simulationDescription.y();
         z = simulationDescription.z();
         defaultModeratorProperties = simulationDescription.defaultModeratorProperties();
+        rayProgram = rayProgram(0);
         
-        // yes this gets trashed immediately, oh well
-        moderatorProperties = new ReactorModeratorRegistry.IModeratorProperties[x][y][z];
         controlRodsXZ = new SimUtil.ControlRod[x][z];
         controlRods = new SimUtil.ControlRod[simulationDescription.controlRodCount()];
         
@@ -67,107 +96,163 @@ public abstract class BaseReactorSimulation implements IReactorSimulation {
             output = battery = new Battery((((long) (x + 2) * (y + 2) * (z + 2)) - ((long) x * y * z)) * Config.CONFIG.Reactor.PassiveBatteryPerExternalBlock);
             coolantTank = null;
         } else {
-            long perSideCapacity = controlRods.length * y * Config.CONFIG.Reactor.CoolantTankAmountPerFuelRod;
-            perSideCapacity += simulationDescription.manifoldCount() * Config.CONFIG.Reactor.CoolantTankAmountPerFuelRod;
-            output = coolantTank = new CoolantTank(perSideCapacity, simulationDescription.defaultModeratorProperties());
+            output = coolantTank = new CoolantTank(coolantTankCapacity(simulationDescription.manifoldCount()), simulationDescription.defaultModeratorProperties());
             battery = null;
         }
         
-        for (int i = 0; i < x; i++) {
-            for (int j = 0; j < y; j++) {
-                for (int k = 0; k < z; k++) {
-                    var newProperties = simulationDescription.moderatorPropertiesAt(i, j, k);
-                    if (simulationDescription.isManifoldAt(i, j, k)) {
-                        newProperties = coolantTank;
-                    }
-                    if (newProperties == null) {
-                        newProperties = simulationDescription.defaultModeratorProperties();
-                    }
-                    if (controlRodsXZ[i][k] != null) {
-                        newProperties = null;
-                    }
-                    moderatorProperties[i][j][k] = newProperties;
-                }
-            }
+        final var descriptionPalette = simulationDescription.moderatorPalette();
+        moderatorPalette = new ReactorModeratorRegistry.IModeratorProperties[descriptionPalette.size() + DESCRIPTION_PALETTE_OFFSET];
+        moderatorPalette[DEFAULT_PALETTE_INDEX] = simulationDescription.defaultModeratorProperties();
+        moderatorPalette[MANIFOLD_PALETTE_INDEX] = coolantTank;
+        for (int i = 1; i < descriptionPalette.size(); i++) {
+            moderatorPalette[i + DESCRIPTION_PALETTE_OFFSET] = descriptionPalette.get(i);
         }
-    
+        this.simulationDescription = simulationDescription;
+        
         fuelTank = new FuelTank(Config.CONFIG.Reactor.PerFuelRodCapacity * controlRods.length * y);
         
-        double fuelToCasingRFKT = 0;
+        updateHeatTransferTerms();
+        
+        this.casingToAmbientRFKT = 2 * ((x + 2) * (y + 2) + (x + 2) * (z + 2) + (z + 2) * (y + 2)) * Config.CONFIG.Reactor.StackToAmbientRFMKT;
+        updateHeatTransferRates();
+        
+        fuelHeat.setRfPerKelvin(controlRods.length * y * Config.CONFIG.Reactor.RodFEPerUnitVolumeKelvin);
+        stackHeat.setRfPerKelvin(x * y * z * Config.CONFIG.Reactor.RodFEPerUnitVolumeKelvin);
+        
+        ambientHeat.setInfinite(true);
+        ambientHeat.setTemperature(simulationDescription.ambientTemperature());
+        stackHeat.setTemperature(simulationDescription.ambientTemperature());
+        fuelHeat.setTemperature(simulationDescription.ambientTemperature());
+        if (battery != null) {
+            battery.setTemperature(simulationDescription.ambientTemperature());
+        }
+    }
+    
+    private long coolantTankCapacity(int manifoldCount) {
+        return (controlRods.length * y + manifoldCount) * Config.CONFIG.Reactor.CoolantTankAmountPerFuelRod;
+    }
+    
+    /**
+     * palette index of the block at the column major linearIndex, see moderatorIndex
+     */
+    protected short paletteIndex(int linearIndex) {
+        final int column = linearIndex / y;
+        return controlRodsXZ[column / z][column % z] != null ? FUEL_ROD_PALETTE_INDEX : moderatorPaletteIndex(linearIndex);
+    }
+    
+    private short moderatorPaletteIndex(int linearIndex) {
+        if (simulationDescription.isManifoldAt(linearIndex)) {
+            // passive reactors dont have a coolant tank, so manifolds are just more default moderator
+            return coolantTank != null ? MANIFOLD_PALETTE_INDEX : DEFAULT_PALETTE_INDEX;
+        }
+        final int descriptionIndex = simulationDescription.moderatorIndexAt(linearIndex);
+        return (short) (descriptionIndex == 0 ? DEFAULT_PALETTE_INDEX : descriptionIndex + DESCRIPTION_PALETTE_OFFSET);
+    }
+    
+    private void updateHeatTransferRates() {
+        fuelToCasingRFKT = fuelToCasingConductivity * Config.CONFIG.Reactor.FuelToStackRFKTMultiplier;
+        stackToCoolantSystemRFKT = coolantSystemSurfaceArea * Config.CONFIG.Reactor.StackToCoolantRFMKT;
+        if (battery != null) {
+            stackToCoolantSystemRFKT *= Config.CONFIG.Reactor.PassiveCoolingTransferEfficiency;
+        }
+    }
+    
+    @Override
+    public boolean updateLayout(SimulationDescription simulationDescription, IntList changedBlocks) {
+        final var descriptionPalette = simulationDescription.moderatorPalette();
+        if (descriptionPalette.size() + DESCRIPTION_PALETTE_OFFSET > moderatorPalette.length) {
+            final int oldLength = moderatorPalette.length;
+            moderatorPalette = Arrays.copyOf(moderatorPalette, descriptionPalette.size() + DESCRIPTION_PALETTE_OFFSET);
+            for (int i = oldLength; i < moderatorPalette.length; i++) {
+                moderatorPalette[i] = descriptionPalette.get(i - DESCRIPTION_PALETTE_OFFSET);
+            }
+        }
+        this.simulationDescription = simulationDescription;
+        for (int i = 0; i < changedBlocks.size(); i++) {
+            if (!canChangeModerator(paletteIndex(changedBlocks.getInt(i)))) {
+                return false;
+            }
+        }
+        if (coolantTank != null) {
+            coolantTank.setPerSideCapacity(coolantTankCapacity(simulationDescription.manifoldCount()));
+        }
+        // the blocks that were there are already gone from the description, so the terms are summed up again rather than adjusted
+        updateHeatTransferTerms();
+        updateHeatTransferRates();
+        onLayoutChanged(changedBlocks);
+        return true;
+    }
+    
+    /**
+     * sums up the heat transfer terms from the fuel rod faces and the manifolds, the rest of the reactor doesnt take part
+     */
+    private void updateHeatTransferTerms() {
+        double fuelToCasingConductivity = 0;
         int fuelToManifoldSurfaceArea = 0;
         for (SimUtil.ControlRod controlRod : controlRods) {
             for (int i = 0; i < y; i++) {
                 for (Vector2ic direction : SimUtil.cardinalDirections) {
                     if (controlRod.x + direction.x() < 0 || controlRod.x + direction.x() >= x || controlRod.z + direction.y() < 0 || controlRod.z + direction.y() >= z) {
-                        fuelToCasingRFKT += Config.CONFIG.Reactor.CasingHeatTransferRFMKT;
+                        fuelToCasingConductivity += Config.CONFIG.Reactor.CasingHeatTransferRFMKT;
                         continue;
                     }
-                    ReactorModeratorRegistry.IModeratorProperties properties = moderatorProperties[controlRod.x + direction.x()][i][controlRod.z + direction.y()];
+                    ReactorModeratorRegistry.IModeratorProperties properties = moderatorPropertiesAt(controlRod.x + direction.x(), i, controlRod.z + direction.y());
                     if (properties != null) {
                         if (properties instanceof CoolantTank) {
                             // manifold, dynamic heat transfer rate
                             fuelToManifoldSurfaceArea++;
                         } else {
                             // normal block
-                            fuelToCasingRFKT += properties.heatConductivity();
+                            fuelToCasingConductivity += properties.heatConductivity();
                         }
                     }
                 }
             }
         }
-        fuelToCasingRFKT *= Config.CONFIG.Reactor.FuelToStackRFKTMultiplier;
         
-        double stackToCoolantSystemRFKT = 2 * (x * y + x * z + z * y);
+        double coolantSystemSurfaceArea = 2 * (x * y + x * z + z * y);
         
-        
-        for (int i = 0; i < x; i++) {
-            for (int j = 0; j < y; j++) {
-                for (int k = 0; k < z; k++) {
-                    ReactorModeratorRegistry.IModeratorProperties properties = moderatorProperties[i][j][k];
-                    if (properties instanceof CoolantTank) {
-                        // its a manifold here, need to consider its surface area
-                        for (Vector3ic axisDirection : SimUtil.axisDirections) {
-                            int neighborX = i + axisDirection.x();
-                            int neighborY = j + axisDirection.y();
-                            int neighborZ = k + axisDirection.z();
-                            if (neighborX < 0 || neighborX >= this.x ||
-                                        neighborY < 0 || neighborY >= this.y ||
-                                        neighborZ < 0 || neighborZ >= this.z) {
-                                // OOB, so its a casing we are against here, this counts against us
-                                stackToCoolantSystemRFKT--;
-                                continue;
-                            }
-                            ReactorModeratorRegistry.IModeratorProperties neighborProperties = moderatorProperties[neighborX][neighborY][neighborZ];
-                            // should a fuel rod add to surface area? it does right now.
-                            if (!(neighborProperties instanceof ICoolantTank)) {
-                                stackToCoolantSystemRFKT++;
-                            }
-                        }
-                    }
+        // passive reactors dont have a coolant tank, their manifolds are default moderator and dont count
+        for (int linearIndex = coolantTank != null ? simulationDescription.nextManifold(0) : -1; linearIndex != -1; linearIndex = simulationDescription.nextManifold(linearIndex + 1)) {
+            final int i = linearIndex / (y * z);
+            final int j = linearIndex % y;
+            final int k = (linearIndex / y) % z;
+            // its a manifold here, need to consider its surface area
+            for (Vector3ic axisDirection : SimUtil.axisDirections) {
+                int neighborX = i + axisDirection.x();
+                int neighborY = j + axisDirection.y();
+                int neighborZ = k + axisDirection.z();
+                if (neighborX < 0 || neighborX >= this.x ||
+                            neighborY < 0 || neighborY >= this.y ||
+                            neighborZ < 0 || neighborZ >= this.z) {
+                    // OOB, so its a casing we are against here, this counts against us
+                    coolantSystemSurfaceArea--;
+                    continue;
+                }
+                ReactorModeratorRegistry.IModeratorProperties neighborProperties = moderatorPropertiesAt(neighborX, neighborY, neighborZ);
+                // should a fuel rod add to surface area? it does right now.
+                if (!(neighborProperties instanceof ICoolantTank)) {
+                    coolantSystemSurfaceArea++;
                 }
             }
         }
-        stackToCoolantSystemRFKT *= Config.CONFIG.Reactor.StackToCoolantRFMKT;
         
-        if (simulationDescription.passivelyCooled()) {
-            stackToCoolantSystemRFKT *= Config.CONFIG.Reactor.PassiveCoolingTransferEfficiency;
-        }
-        
-        this.casingToAmbientRFKT = 2 * ((x + 2) * (y + 2) + (x + 2) * (z + 2) + (z + 2) * (y + 2)) * Config.CONFIG.Reactor.StackToAmbientRFMKT;
-        this.fuelToCasingRFKT = fuelToCasingRFKT;
+        this.fuelToCasingConductivity = fuelToCasingConductivity;
         this.fuelToManifoldSurfaceArea = fuelToManifoldSurfaceArea;
-        this.stackToCoolantSystemRFKT = stackToCoolantSystemRFKT;
-        
-        fuelHeat.setRfPerKelvin(controlRods.length * y * Config.CONFIG.Reactor.RodFEPerUnitVolumeKelvin);
-        stackHeat.setRfPerKelvin(x * y * z * Config.CONFIG.Reactor.RodFEPerUnitVolumeKelvin);
-        
-        ambientHeat.setInfinite(true);
-        ambientHeat.setTemperature(simulationDescription.ambientTemperature());
-        stackHeat.setTemperature(simulationDescription.ambientTemperature());
-        fuelHeat.setTemperature(simulationDescription.ambientTemperature());
-        if (battery != null) {
-            battery.setTemperature(simulationDescription.ambientTemperature());
-        }
+        this.coolantSystemSurfaceArea = coolantSystemSurfaceArea;
+    }
+    
+    /**
+     * if a layout update can put this palette entry into the reactor, checked before anything is changed
+     */
+    protected boolean canChangeModerator(short paletteIndex) {
+        return true;
+    }
+    
+    /**
+     * called after a layout update has changed the blocks at changedBlocks
+     */
+    protected void onLayoutChanged(IntList changedBlocks) {
     }
     
     @Override
@@ -201,10 +286,26 @@ public abstract class BaseReactorSimulation implements IReactorSimulation {
         }
     }
     
+    protected int moderatorIndex(int x, int y, int z) {
+        return ((x * this.z) + z) * this.y + y;
+    }
+    
+    @Nullable
+    protected ReactorModeratorRegistry.IModeratorProperties moderatorPropertiesAt(int x, int y, int z) {
+        return controlRodsXZ[x][z] != null ? null : moderatorPalette[moderatorPaletteIndex(moderatorIndex(x, y, z))];
+    }
+    
+    protected RayProgram rayProgram(int rayLevel) {
+        if (rayPrograms[rayLevel] == null) {
+            rayPrograms[rayLevel] = RayProgram.shared(y, SimUtil.rayTables[rayLevel]);
+        }
+        return rayPrograms[rayLevel];
+    }
+    
     protected abstract double radiate();
     
     protected void startNextRadiate() {
-    
+        
     }
     
     @Override
@@ -257,6 +358,36 @@ public abstract class BaseReactorSimulation implements IReactorSimulation {
         return ambientHeat.temperature();
     }
     
+    @Override
+    public long footprintBytes(Reference2LongMap<Object> shared) {
+        // the description belongs to the controller, only the palette is this simulation's own
+        long bytes = moderatorPalette.length * 8L;
+        // control rod objects and their slots in controlRodsXZ
+        bytes += controlRods.length * 48L + (long) x * z * 8;
+        for (RayProgram program : rayPrograms) {
+            if (program != null) {
+                shared.put(program, program.steps.length * 4L + program.lengths.length * 8L + program.rayStarts.length * 4L);
+            }
+        }
+        return bytes;
+    }
+    
+    @Override
+    public boolean changedSince(@Nullable byte[] written) {
+        if (written == null || written.length != stateBytes() || written[0] != STATE_VERSION || written[1] != stateParts()) {
+            return true;
+        }
+        final var buffer = ByteBuffer.wrap(written, 2, written.length - 2);
+        return fuelTank.changedSince(buffer)
+                || (coolantTank != null && coolantTank.changedSince(buffer))
+                || (battery != null && battery.changedSince(buffer))
+                || changedSince(fuelFertility, buffer.getDouble()) || changedSince(fuelHeat.temperature(), buffer.getDouble()) || changedSince(stackHeat.temperature(), buffer.getDouble());
+    }
+    
+    private static boolean changedSince(double value, double savedValue) {
+        return Math.abs(value - savedValue) > SAVE_TOLERANCE * Math.max(1, Math.abs(savedValue));
+    }
+    
     @Nullable
     @Override
     public PhosphophylliteCompound save() {
@@ -274,6 +405,32 @@ public abstract class BaseReactorSimulation implements IReactorSimulation {
         return compound;
     }
     
+    @Override
+    public byte[] saveState() {
+        final var buffer = ByteBuffer.allocate(stateBytes());
+        buffer.put(STATE_VERSION);
+        buffer.put(stateParts());
+        fuelTank.writeState(buffer);
+        if (coolantTank != null) {
+            coolantTank.writeState(buffer);
+        }
+        if (battery != null) {
+            battery.writeState(buffer);
+        }
+        buffer.putDouble(fuelFertility);
+        buffer.putDouble(fuelHeat.temperature());
+        buffer.putDouble(stackHeat.temperature());
+        return buffer.array();
+    }
+    
+    private byte stateParts() {
+        return (byte) ((coolantTank != null ? STATE_COOLANT_TANK : 0) | (battery != null ? STATE_BATTERY : 0));
+    }
+    
+    private int stateBytes() {
+        return 2 + FuelTank.STATE_BYTES + (coolantTank != null ? CoolantTank.STATE_BYTES : 0) + (battery != null ? Battery.STATE_BYTES : 0) + STATE_HEAT_BYTES;
+    }
+    
     @Override
     public void load(@Nonnull PhosphophylliteCompound compound) {
         fuelTank.load(compound.getCompound("fuelTank"));
@@ -287,4 +444,36 @@ public abstract class BaseReactorSimulation implements IReactorSimulation {
         fuelHeat.setTemperature(compound.getDouble("fuelHeat"));
         stackHeat.setTemperature(compound.getDouble("reactorHeat"));
     }
+    
+    @Override
+    public void loadState(byte[] state) {
+        if (state.length == 0 || state[0] != STATE_VERSION) {
+            throw new IllegalArgumentException("Unknown simulation state version");
+        }
+        final var buffer = ByteBuffer.wrap(state, 1, state.length - 1);
+        try {
+            final byte parts = buffer.get();
+            fuelTank.readState(buffer);
+            // a reactor rebuilt as passive or active since skips the part it no longer has, and starts the one it gained empty
+            if ((parts & STATE_COOLANT_TANK) != 0) {
+                if (coolantTank != null) {
+                    coolantTank.readState(buffer);
+                } else {
+                    buffer.position(buffer.position() + CoolantTank.STATE_BYTES);
+                }
+            }
+            if ((parts & STATE_BATTERY) != 0) {
+                if (battery != null) {
+                    battery.readState(buffer);
+                } else {
+                    buffer.position(buffer.position() + Battery.STATE_BYTES);
+                }
+            }
+            fuelFertility = buffer.getDouble();
+            fuelHeat.setTemperature(buffer.getDouble());
+            stackHeat.setTemperature(buffer.getDouble());
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IllegalArgumentException("Truncated or corrupt simulation state", e);
+        }
+    }
 }
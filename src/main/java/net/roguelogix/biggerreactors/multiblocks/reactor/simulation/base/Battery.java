@@ -8,12 +8,16 @@ import net.roguelogix.phosphophyllite.util.HeatBody;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
 
 public class Battery extends HeatBody implements IReactorSimulation.IBattery, IPhosphophylliteSerializable {
     private final long capacity;
     private long stored;
     private long generatedLastTick;
     
+    // bytes writeState writes
+    static final int STATE_BYTES = 8;
+    
     {
         setInfinite(true);
     }
@@ -62,6 +66,21 @@ public class Battery extends HeatBody implements IReactorSimulation.IBattery, IP
         return generatedLastTick;
     }
     
+    /**
+     * reads past what writeState wrote, unless something already differs
+     */
+    boolean changedSince(ByteBuffer written) {
+        return written.getLong() != stored;
+    }
+    
+    void writeState(ByteBuffer buffer) {
+        buffer.putLong(stored);
+    }
+    
+    void readState(ByteBuffer buffer) {
+        stored = buffer.getLong();
+    }
+    
     @Nullable
     @Override
     public PhosphophylliteCompound save() {
@@ -10,10 +10,11 @@ import net.roguelogix.phosphophyllite.util.HeatBody;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
 
 public class CoolantTank extends HeatBody implements IReactorSimulation.ICoolantTank, ReactorModeratorRegistry.IModeratorProperties, IPhosphophylliteSerializable {
     
-    private final long perSideCapacity;
+    private long perSideCapacity;
     private long liquidAmount = 0;
     private long vaporAmount = 0;
     
@@ -26,12 +27,24 @@ public class CoolantTank extends HeatBody implements IReactorSimulation.ICoolant
     private long transitionedLastTick;
     private long rfTransferredLastTick;
     
+    // bytes writeState writes
+    static final int STATE_BYTES = 16;
+    
     CoolantTank(long perSideCapacity, ReactorModeratorRegistry.IModeratorProperties defaultModeratorProperties) {
         this.perSideCapacity = perSideCapacity;
         this.defaultModeratorProperties = defaultModeratorProperties;
         this.setInfinite(true);
     }
     
+    /**
+     * for layout changes in place, anything over the new capacity is lost
+     */
+    void setPerSideCapacity(long perSideCapacity) {
+        this.perSideCapacity = perSideCapacity;
+        liquidAmount = Math.min(liquidAmount, perSideCapacity);
+        vaporAmount = Math.min(vaporAmount, perSideCapacity);
+    }
+    
     @Override
     public double transferWith(HeatBody body, double rfkt) {
         if (transitionProperties == null) {
@@ -211,6 +224,23 @@ public class CoolantTank extends HeatBody implements IReactorSimulation.ICoolant
         return heatConductivity;
     }
     
+    /**
+     * reads past what writeState wrote, unless something already differs
+     */
+    boolean changedSince(ByteBuffer written) {
+        return written.getLong() != liquidAmount || written.getLong() != vaporAmount;
+    }
+    
+    void writeState(ByteBuffer buffer) {
+        buffer.putLong(liquidAmount);
+        buffer.putLong(vaporAmount);
+    }
+    
+    void readState(ByteBuffer buffer) {
+        liquidAmount = buffer.getLong();
+        vaporAmount = buffer.getLong();
+    }
+    
     @Nullable
     @Override
     public PhosphophylliteCompound save() {
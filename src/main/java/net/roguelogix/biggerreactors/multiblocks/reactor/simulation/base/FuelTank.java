@@ -6,6 +6,7 @@ import net.roguelogix.phosphophyllite.serialization.PhosphophylliteCompound;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
 
 public class FuelTank implements IReactorSimulation.IFuelTank, IPhosphophylliteSerializable {
     
@@ -18,6 +19,9 @@ public class FuelTank implements IReactorSimulation.IFuelTank, IPhosphophylliteS
     
     private double burnedLastTick = 0;
     
+    // bytes writeState writes
+    static final int STATE_BYTES = 24;
+    
     public FuelTank(long capacity) {
         this.capacity = capacity;
     }
@@ -117,6 +121,25 @@ public class FuelTank implements IReactorSimulation.IFuelTank, IPhosphophylliteS
         return burnedLastTick;
     }
     
+    /**
+     * reads past what writeState wrote, unless something already differs
+     */
+    boolean changedSince(ByteBuffer written) {
+        return written.getLong() != fuel || written.getLong() != waste || written.getDouble() != partialUsed;
+    }
+    
+    void writeState(ByteBuffer buffer) {
+        buffer.putLong(fuel);
+        buffer.putLong(waste);
+        buffer.putDouble(partialUsed);
+    }
+    
+    void readState(ByteBuffer buffer) {
+        fuel = buffer.getLong();
+        waste = buffer.getLong();
+        partialUsed = buffer.getDouble();
+    }
+    
     @Nullable
     @Override
     public PhosphophylliteCompound save() {
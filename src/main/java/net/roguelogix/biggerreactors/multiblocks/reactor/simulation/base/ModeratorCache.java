@@ -13,10 +13,18 @@ public class ModeratorCache {
         this.rootModerator = rootModerator;
     }
     
-    public void update() {
-        absorption = rootModerator.absorption();
-        moderation = rootModerator.moderation() - 1.0;
-        heatEfficiency = rootModerator.heatEfficiency();
+    /**
+     * @return if anything changed since the last update
+     */
+    public boolean update() {
+        final double absorption = rootModerator.absorption();
+        final double moderation = rootModerator.moderation() - 1.0;
+        final double heatEfficiency = rootModerator.heatEfficiency();
+        final boolean changed = absorption != this.absorption || moderation != this.moderation || heatEfficiency != this.heatEfficiency;
+        this.absorption = absorption;
+        this.moderation = moderation;
+        this.heatEfficiency = heatEfficiency;
+        return changed;
     }
     
     public ModeratorCache duplicate() {
@@ -0,0 +1,86 @@
+package net.roguelogix.biggerreactors.multiblocks.reactor.simulation.base;
+
+/**
+ * SimUtil's ray table compiled for a reactor of a specific height
+ * <p>
+ * Every step carries the range of source Y levels (relative to the bottom of the control rod) that land inside the reactor
+ * steps are monotonic in Y, so once that range is empty the rest of the ray is as well, and is dropped
+ */
+public class RayProgram {
+    
+    public static final int STEP_STRIDE = 5;
+    public static final int STEP_X = 0;
+    public static final int STEP_Z = 1;
+    public static final int STEP_Y = 2;
+    public static final int STEP_K_START = 3;
+    public static final int STEP_K_END = 4;
+    
+    public final int height;
+    public final int rayCount;
+    // ray i owns steps rayStarts[i] until rayStarts[i + 1]
+    public final int[] rayStarts;
+    // x, z, y offsets then the start (inclusive) and end (exclusive) source Y level of each step, packed
+    public final int[] steps;
+    public final double[] lengths;
+    // how far along its ray each step starts
+    public final double[] distances;
+    private final SimUtil.RayTable rayTable;
+    
+    public RayProgram(int height) {
+        this(height, SimUtil.rayTables[0]);
+    }
+    
+    public RayProgram(int height, SimUtil.RayTable rayTable) {
+        this.height = height;
+        this.rayTable = rayTable;
+        this.rayCount = rayTable.rayCount;
+        this.rayStarts = new int[rayCount + 1];
+        
+        int stepCount = 0;
+        for (int i = 0; i < rayCount; i++) {
+            for (int j = rayTable.rayStepStarts[i]; j < rayTable.rayStepStarts[i + 1]; j++) {
+                final int offsetY = rayTable.rayStepOffsets[j * 3 + 1];
+                if (Math.max(0, -offsetY) >= Math.min(height, height - offsetY)) {
+                    break;
+                }
+                stepCount++;
+            }
+        }
+        
+        steps = new int[stepCount * STEP_STRIDE];
+        lengths = new double[stepCount];
+        distances = new double[stepCount];
+        
+        int step = 0;
+        for (int i = 0; i < rayCount; i++) {
+            rayStarts[i] = step;
+            double distance = 0;
+            for (int j = rayTable.rayStepStarts[i]; j < rayTable.rayStepStarts[i + 1]; j++) {
+                final int offsetY = rayTable.rayStepOffsets[j * 3 + 1];
+                final int kStart = Math.max(0, -offsetY);
+                final int kEnd = Math.min(height, height - offsetY);
+                if (kStart >= kEnd) {
+                    break;
+                }
+                final int stepIndex = step * STEP_STRIDE;
+                steps[stepIndex + STEP_X] = rayTable.rayStepOffsets[j * 3];
+                steps[stepIndex + STEP_Z] = rayTable.rayStepOffsets[j * 3 + 2];
+                steps[stepIndex + STEP_Y] = offsetY;
+                steps[stepIndex + STEP_K_START] = kStart;
+                steps[stepIndex + STEP_K_END] = kEnd;
+                lengths[step] = rayTable.rayStepLengths[j];
+                distances[step] = distance;
+                distance += lengths[step];
+                step++;
+            }
+        }
+        rayStarts[rayCount] = step;
+    }
+    
+    /**
+     * the one program every reactor of this height uses for the ray table
+     */
+    public static RayProgram shared(int height, SimUtil.RayTable rayTable) {
+        return SharedStructures.intern(((long) System.identityHashCode(rayTable) << 32) | height, RayProgram.class, program -> program.height == height && program.rayTable == rayTable, () -> new RayProgram(height, rayTable));
+    }
+}
@@ -0,0 +1,85 @@
+package net.roguelogix.biggerreactors.multiblocks.reactor.simulation.base;
+
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Mirrors and quarter turns about the vertical axis (the D4 group) that map a reactor's layout onto itself
+ * <p>
+ * Only looks at the layout (moderators, manifolds, control rod positions), whether control rod insertions are symmetric is up to the user
+ */
+public class ReactorSymmetry {
+    
+    public static final int IDENTITY = 0;
+    public static final int MIRROR_X = 1;
+    public static final int MIRROR_Z = 2;
+    public static final int ROTATE_180 = 3;
+    // the rest swap X and Z, so only square reactors can have them
+    public static final int TRANSPOSE = 4;
+    public static final int ANTI_TRANSPOSE = 5;
+    public static final int ROTATE_90 = 6;
+    public static final int ROTATE_270 = 7;
+    public static final int TRANSFORM_COUNT = 8;
+    
+    private final int x, z;
+    // bit i set when transform i maps the layout onto itself, identity always is
+    public final int layoutTransforms;
+    
+    /**
+     * @param layout what is at each column major linear index, blocks with the same value are the same, fuel rods and manifolds included
+     */
+    public ReactorSymmetry(IntUnaryOperator layout, int x, int y, int z) {
+        this.x = x;
+        this.z = z;
+        int layoutTransforms = 1 << IDENTITY;
+        for (int transform = 1; transform < TRANSFORM_COUNT; transform++) {
+            if (transform >= TRANSPOSE && x != z) {
+                break;
+            }
+            if (layoutMatches(layout, transform, y)) {
+                layoutTransforms |= 1 << transform;
+            }
+        }
+        this.layoutTransforms = layoutTransforms;
+    }
+    
+    private boolean layoutMatches(IntUnaryOperator layout, int transform, int y) {
+        for (int i = 0; i < x; i++) {
+            for (int j = 0; j < z; j++) {
+                final int transformedX = transformX(transform, i, j);
+                final int transformedZ = transformZ(transform, i, j);
+                final int column = ((i * z) + j) * y;
+                final int transformedColumn = ((transformedX * z) + transformedZ) * y;
+                for (int k = 0; k < y; k++) {
+                    if (layout.applyAsInt(column + k) != layout.applyAsInt(transformedColumn + k)) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+    
+    public boolean isSymmetric() {
+        return layoutTransforms != (1 << IDENTITY);
+    }
+    
+    public int transformX(int transform, int x, int z) {
+        return switch (transform) {
+            case IDENTITY, MIRROR_Z -> x;
+            case MIRROR_X, ROTATE_180 -> this.x - 1 - x;
+            case TRANSPOSE, ROTATE_90 -> z;
+            case ANTI_TRANSPOSE, ROTATE_270 -> this.z - 1 - z;
+            default -> throw new IllegalArgumentException("Unknown transform " + transform);
+        };
+    }
+    
+    public int transformZ(int transform, int x, int z) {
+        return switch (transform) {
+            case IDENTITY, MIRROR_X -> z;
+            case MIRROR_Z, ROTATE_180 -> this.z - 1 - z;
+            case TRANSPOSE, ROTATE_270 -> x;
+            case ANTI_TRANSPOSE, ROTATE_90 -> this.x - 1 - x;
+            default -> throw new IllegalArgumentException("Unknown transform " + transform);
+        };
+    }
+}
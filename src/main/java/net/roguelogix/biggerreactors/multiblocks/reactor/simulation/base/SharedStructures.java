@@ -0,0 +1,114 @@
+package net.roguelogix.biggerreactors.multiblocks.reactor.simulation.base;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+
+import javax.annotation.Nullable;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Canonical copies of the parts of a simulation that only depend on its layout, so reactors built from the same design share one instead of each holding their own
+ * <p>
+ * Values are only weakly held, once the last simulation using one is gone it's dropped from here too
+ * Nothing handed out may be written to, simulations that change their layout copy first and intern the result again
+ */
+public final class SharedStructures {
+    
+    private static final class WeakValue extends WeakReference<Object> {
+        private final long hash;
+        
+        private WeakValue(Object value, long hash, ReferenceQueue<Object> queue) {
+            super(value, queue);
+            this.hash = hash;
+        }
+    }
+    
+    private static final Long2ObjectOpenHashMap<ObjectArrayList<WeakValue>> values = new Long2ObjectOpenHashMap<>();
+    private static final ReferenceQueue<Object> collected = new ReferenceQueue<>();
+    
+    private SharedStructures() {
+    }
+    
+    /**
+     * @param matches if an existing value of the same type can be used in place of a new one, it must only match values with the given hash
+     * @param create  makes the value when there is no existing one, called without holding any locks
+     * @return the existing value if there is one, otherwise the newly created one
+     */
+    public static <T> T intern(long hash, Class<T> type, Predicate<T> matches, Supplier<T> create) {
+        synchronized (values) {
+            final T existing = find(hash, type, matches);
+            if (existing != null) {
+                return existing;
+            }
+        }
+        final T created = create.get();
+        synchronized (values) {
+            // someone else may have made one in the meantime
+            final T existing = find(hash, type, matches);
+            if (existing != null) {
+                return existing;
+            }
+            values.computeIfAbsent(hash, key -> new ObjectArrayList<>()).add(new WeakValue(created, hash, collected));
+            return created;
+        }
+    }
+    
+    public static byte[] intern(byte[] array) {
+        return intern(((long) Arrays.hashCode(array) << 32) | array.length, byte[].class, existing -> Arrays.equals(existing, array), () -> array);
+    }
+    
+    public static short[] intern(short[] array) {
+        return intern(((long) Arrays.hashCode(array) << 32) | array.length, short[].class, existing -> Arrays.equals(existing, array), () -> array);
+    }
+    
+    public static int[] intern(int[] array) {
+        return intern(((long) Arrays.hashCode(array) << 32) | array.length, int[].class, existing -> Arrays.equals(existing, array), () -> array);
+    }
+    
+    @Nullable
+    private static <T> T find(long hash, Class<T> type, Predicate<T> matches) {
+        purge();
+        final var candidates = values.get(hash);
+        if (candidates == null) {
+            return null;
+        }
+        for (int i = 0; i < candidates.size(); i++) {
+            final Object candidate = candidates.get(i).get();
+            if (type.isInstance(candidate) && matches.test(type.cast(candidate))) {
+                return type.cast(candidate);
+            }
+        }
+        return null;
+    }
+    
+    private static void purge() {
+        Reference<?> reference;
+        while ((reference = collected.poll()) != null) {
+            final var weakValue = (WeakValue) reference;
+            final var candidates = values.get(weakValue.hash);
+            if (candidates == null) {
+                continue;
+            }
+            candidates.remove(weakValue);
+            if (candidates.isEmpty()) {
+                values.remove(weakValue.hash);
+            }
+        }
+    }
+    
+    public static String debugString() {
+        synchronized (values) {
+            purge();
+            int count = 0;
+            for (var candidates : values.values()) {
+                count += candidates.size();
+            }
+            return "SharedSimulationStructures: " + count + "\n";
+        }
+    }
+}
@@ -1,12 +1,13 @@
 package net.roguelogix.biggerreactors.multiblocks.reactor.simulation.base;
 
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import net.roguelogix.biggerreactors.Config;
 import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.IReactorSimulation;
 import net.roguelogix.phosphophyllite.registry.OnModLoad;
 import net.roguelogix.phosphophyllite.repack.org.joml.*;
 
 import java.lang.Math;
-import java.util.ArrayList;
 
 public class SimUtil {
     
@@ -47,17 +48,31 @@ public class SimUtil {
             new Vector3i(+0, +0, -1)
     };
     
-    public static class RayStep {
-        public final Vector3i offset;
-        public final double length;
+    public static final class RayTable {
+        public final int rayCount;
+        // ray i owns steps rayStepStarts[i] until rayStepStarts[i + 1]
+        public final int[] rayStepStarts;
+        // x, y, z block offset of each step, packed
+        public final int[] rayStepOffsets;
+        public final double[] rayStepLengths;
         
-        private RayStep(Vector3i offset, double length) {
-            this.offset = offset;
-            this.length = length;
+        private RayTable(int rayCount, int[] rayStepStarts, int[] rayStepOffsets, double[] rayStepLengths) {
+            this.rayCount = rayCount;
+            this.rayStepStarts = rayStepStarts;
+            this.rayStepOffsets = rayStepOffsets;
+            this.rayStepLengths = rayStepLengths;
         }
     }
     
-    public static final ArrayList<ArrayList<RayStep>> rays = new ArrayList<>();
+    // full resolution, then half as many rays each level down, see SimulationFidelity
+    public static final int RAY_TABLE_LEVELS = 3;
+    public static final RayTable[] rayTables = new RayTable[RAY_TABLE_LEVELS];
+    
+    // the full resolution table, rayTables[0]
+    public static final int rayCount;
+    public static final int[] rayStepStarts;
+    public static final int[] rayStepOffsets;
+    public static final double[] rayStepLengths;
     
     @OnModLoad
     private static void onModLoad() {
@@ -67,10 +82,20 @@ public class SimUtil {
     // TODO: reloadable
     static {
         // Config is registered before any @OnModLoad classes are loaded/called, so, the the config is loaded first
-        final double TTL = Config.CONFIG.Reactor.IrradiationDistance;
-        
-        // generate ray directions using Fibonacci sphere
+        final double TTL = Config.CONFIG.Reactor.irradiationDistance();
         final int SimulationRays = Config.CONFIG.Reactor.SimulationRays;
+        for (int i = 0; i < RAY_TABLE_LEVELS; i++) {
+            // too few rays and whole directions go missing
+            rayTables[i] = traceRays(Math.max(Math.min(SimulationRays, 8), SimulationRays >> i), TTL);
+        }
+        rayCount = rayTables[0].rayCount;
+        rayStepStarts = rayTables[0].rayStepStarts;
+        rayStepOffsets = rayTables[0].rayStepOffsets;
+        rayStepLengths = rayTables[0].rayStepLengths;
+    }
+    
+    private static RayTable traceRays(int SimulationRays, double TTL) {
+        // generate ray directions using Fibonacci sphere
         final double SimulationRaysDouble = SimulationRays - 1;
         final var rayDirections = new Vector3d[SimulationRays];
         final double phi = Math.PI * (3.0 - Math.sqrt(5));
@@ -97,11 +122,16 @@ public class SimUtil {
                 new Vector3d()
         };
         
+        final IntArrayList stepOffsets = new IntArrayList();
+        final DoubleArrayList stepLengths = new DoubleArrayList();
+        final int[] rayStepStarts = new int[SimulationRays + 1];
+        
         // ray tracing, because cardinal directions isn't good enough for me
         // also keeps you from building a skeleton reactor
         
-        for (Vector3dc rayDirection : rayDirections) {
-            final ArrayList<RayStep> raySteps = new ArrayList<>();
+        for (int ray = 0; ray < SimulationRays; ray++) {
+            final Vector3dc rayDirection = rayDirections[ray];
+            rayStepStarts[ray] = stepLengths.size();
             
             radiationDirection.set(rayDirection);
             radiationDirection.normalize();
@@ -157,7 +187,10 @@ public class SimUtil {
                 segmentLength = Math.min(totalLength - processedLength, segmentLength);
                 
                 if (!firstIteration && segmentLength != 0) {
-                    raySteps.add(new RayStep(new Vector3i(currentSectionBlock, 0), segmentLength));
+                    stepOffsets.add((int) currentSectionBlock.x);
+                    stepOffsets.add((int) currentSectionBlock.y);
+                    stepOffsets.add((int) currentSectionBlock.z);
+                    stepLengths.add(segmentLength);
                 }
                 firstIteration = false;
                 
@@ -169,7 +202,8 @@ public class SimUtil {
                 
                 currentSegmentStart.set(currentSegmentEnd);
             }
-            rays.add(raySteps);
         }
+        rayStepStarts[SimulationRays] = stepLengths.size();
+        return new RayTable(SimulationRays, rayStepStarts, stepOffsets.toIntArray(), stepLengths.toDoubleArray());
     }
 }
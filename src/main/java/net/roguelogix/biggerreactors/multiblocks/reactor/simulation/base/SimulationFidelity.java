@@ -0,0 +1,76 @@
+package net.roguelogix.biggerreactors.multiblocks.reactor.simulation.base;
+
+import net.roguelogix.biggerreactors.Config;
+
+/**
+ * Server wide simulation fidelity, stepped down when the server tick time climbs and back up when there is headroom again
+ * <p>
+ * The first levels trace with fewer rays (SimUtil.rayTables), the last one also only retraces a slice of the dirty control rods each tick
+ */
+public final class SimulationFidelity {
+    
+    public static final int FULL = 0;
+    public static final int ROD_SAMPLING = SimUtil.RAY_TABLE_LEVELS;
+    public static final int LEVEL_COUNT = ROD_SAMPLING + 1;
+    // at ROD_SAMPLING, at most one in this many control rods is traced each tick
+    public static final int ROD_SAMPLING_DIVISOR = 4;
+    
+    // ticks the average has to stay past a threshold before the level changes, restoring is slower so it doesnt flap
+    private static final int REDUCE_TICKS = 20;
+    private static final int RESTORE_TICKS = 200;
+    
+    private static volatile int level = FULL;
+    private static double averageTickMillis = 0;
+    private static int ticksOverThreshold = 0;
+    private static int ticksUnderThreshold = 0;
+    
+    private SimulationFidelity() {
+    }
+    
+    public static int level() {
+        return Config.TestOverrides.FidelityLevel != null ? Config.TestOverrides.FidelityLevel : level;
+    }
+    
+    public static int rayLevel(int level) {
+        return Math.min(level, SimUtil.RAY_TABLE_LEVELS - 1);
+    }
+    
+    public static boolean rodSampling(int level) {
+        return level >= ROD_SAMPLING;
+    }
+    
+    /**
+     * called once per server tick with how long it took
+     */
+    public static void recordTick(long tickNanos) {
+        if (!Config.CONFIG.Reactor.ModeSpecific.AdaptiveFidelity) {
+            level = FULL;
+            return;
+        }
+        averageTickMillis = averageTickMillis * 0.9 + (tickNanos / 1_000_000.0) * 0.1;
+        if (averageTickMillis > Config.CONFIG.Reactor.ModeSpecific.FidelityReduceMSPT) {
+            ticksUnderThreshold = 0;
+            if (++ticksOverThreshold >= REDUCE_TICKS) {
+                ticksOverThreshold = 0;
+                level = Math.min(LEVEL_COUNT - 1, level + 1);
+            }
+        } else if (averageTickMillis < Config.CONFIG.Reactor.ModeSpecific.FidelityRestoreMSPT) {
+            ticksOverThreshold = 0;
+            if (++ticksUnderThreshold >= RESTORE_TICKS) {
+                ticksUnderThreshold = 0;
+                level = Math.max(FULL, level - 1);
+            }
+        } else {
+            ticksOverThreshold = 0;
+            ticksUnderThreshold = 0;
+        }
+    }
+    
+    public static String describe(int level) {
+        return level + " (" + SimUtil.rayTables[rayLevel(level)].rayCount + " rays" + (rodSampling(level) ? ", 1/" + ROD_SAMPLING_DIVISOR + " rods per tick" : "") + ")";
+    }
+    
+    public static String debugString() {
+        return "SimulationAverageMSPT: " + averageTickMillis + "\n";
+    }
+}
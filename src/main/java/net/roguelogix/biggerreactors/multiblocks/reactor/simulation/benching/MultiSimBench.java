@@ -17,7 +17,7 @@ public class MultiSimBench {
         final int XZ = 64 * spaceBetweenRods, Y = 96;
         final int rodOffset = 0;
         final int simulationCount = 4;
-        final var simulationBuilder = new SimulationDescription.Builder(false, true, true, true, true);
+        final var simulationBuilder = new SimulationDescription.Builder(false, true, false, true, true, true, false);
         final int warmupTicks = 50;
         final int ticks = 5000;
     
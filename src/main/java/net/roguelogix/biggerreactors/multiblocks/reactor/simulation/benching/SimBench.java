@@ -29,7 +29,7 @@ public class SimBench {
         
         long start = System.nanoTime();
     
-        final var simulationBuilder = new SimulationDescription.Builder(false, false, true, true, false);
+        final var simulationBuilder = new SimulationDescription.Builder(false, false, false, true, true, false, false);
         final var simulation = simulationBuilder.build(simulationDescription);
         simulation.fuelTank().insertFuel(Long.MAX_VALUE, false);
 //        long JITStart = System.nanoTime();
@@ -49,8 +49,8 @@ public class SimBench {
 //        var nbt = simulation.save();
         
         long MStart = System.nanoTime();
-        final var simulation1Builder = new SimulationDescription.Builder(false, true, true, true, false);
-        final var simulation2Builder = new SimulationDescription.Builder(false, true, false, false, true);
+        final var simulation1Builder = new SimulationDescription.Builder(false, true, false, true, true, false, false);
+        final var simulation2Builder = new SimulationDescription.Builder(false, true, false, false, false, true, false);
         var simulation1 = simulation1Builder.build(simulationDescription);
         var simulation2 = simulation2Builder.build(simulationDescription);
         
@@ -0,0 +1,162 @@
+package net.roguelogix.biggerreactors.multiblocks.reactor.simulation.cpu;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import it.unimi.dsi.fastutil.shorts.ShortArrayList;
+import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.base.ModeratorCache;
+import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.base.SharedStructures;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The moderator layout in cells of 2^level blocks along each axis, for tracing the far end of rays where per block detail barely matters
+ * <p>
+ * Each cell maps to the moderators in it (its composition), a cell behaves as the average of those, moderator properties can change, so that average
+ * is retaken whenever they do, see Properties
+ * Fuel rods are never averaged, cell columns with one in them are always traced block by block
+ */
+public class CoarseModeratorGrid {
+    
+    public static final int MAX_LEVEL = 2;
+    
+    public final int level;
+    public final int cellsX, cellsY, cellsZ;
+    // composition of each cell, X/Z column major like moderatorIndices
+    public final int[] cellCompositions;
+    // per X/Z cell column, if any of it is a fuel rod
+    public final boolean[] fuelColumns;
+    // per X/Z cell column, cell columns with the same compositions all the way up share a class
+    public final int[] cellColumnClasses;
+    // composition i is compositionModerators[compositionStarts[i]] until compositionModerators[compositionStarts[i + 1]], each moderator once
+    // with how many of the cell's blocks it is in compositionBlocks
+    private final int[] compositionStarts;
+    private final short[] compositionModerators;
+    private final short[] compositionBlocks;
+    private final ModeratorIndices moderatorIndices;
+    
+    private CoarseModeratorGrid(ModeratorIndices moderatorIndices, int level, int x, int y, int z) {
+        this.moderatorIndices = moderatorIndices;
+        this.level = level;
+        final int cellSize = 1 << level;
+        cellsX = (x + cellSize - 1) >> level;
+        cellsY = (y + cellSize - 1) >> level;
+        cellsZ = (z + cellSize - 1) >> level;
+        cellCompositions = new int[cellsX * cellsY * cellsZ];
+        fuelColumns = new boolean[cellsX * cellsZ];
+        
+        final Object2IntOpenHashMap<ShortArrayList> compositions = new Object2IntOpenHashMap<>();
+        compositions.defaultReturnValue(-1);
+        final IntArrayList compositionStarts = new IntArrayList();
+        final ShortArrayList compositionModerators = new ShortArrayList();
+        final ShortArrayList compositionBlocks = new ShortArrayList();
+        final ShortArrayList cellModerators = new ShortArrayList();
+        // moderator then block count, for each moderator in the cell
+        final ShortArrayList cellRuns = new ShortArrayList();
+        for (int cellX = 0; cellX < cellsX; cellX++) {
+            for (int cellZ = 0; cellZ < cellsZ; cellZ++) {
+                final int column = (cellX * cellsZ) + cellZ;
+                for (int cellY = 0; cellY < cellsY; cellY++) {
+                    cellModerators.clear();
+                    for (int i = cellX << level; i < Math.min(x, (cellX + 1) << level); i++) {
+                        for (int j = cellZ << level; j < Math.min(z, (cellZ + 1) << level); j++) {
+                            final int columnStart = ((i * z) + j) * y;
+                            for (int k = cellY << level; k < Math.min(y, (cellY + 1) << level); k++) {
+                                final short moderatorIndex = (short) moderatorIndices.get(columnStart + k);
+                                if (moderatorIndex == 0) {
+                                    fuelColumns[column] = true;
+                                }
+                                cellModerators.add(moderatorIndex);
+                            }
+                        }
+                    }
+                    // sorted, so cells with the same moderators in a different arrangement share a composition
+                    Arrays.sort(cellModerators.elements(), 0, cellModerators.size());
+                    cellRuns.clear();
+                    for (int i = 0; i < cellModerators.size(); i++) {
+                        final short moderatorIndex = cellModerators.getShort(i);
+                        if (cellRuns.isEmpty() || cellRuns.getShort(cellRuns.size() - 2) != moderatorIndex) {
+                            cellRuns.add(moderatorIndex);
+                            cellRuns.add((short) 0);
+                        }
+                        cellRuns.set(cellRuns.size() - 1, (short) (cellRuns.getShort(cellRuns.size() - 1) + 1));
+                    }
+                    int composition = compositions.getInt(cellRuns);
+                    if (composition == -1) {
+                        composition = compositionStarts.size();
+                        compositions.put(new ShortArrayList(cellRuns), composition);
+                        compositionStarts.add(compositionModerators.size());
+                        for (int i = 0; i < cellRuns.size(); i += 2) {
+                            compositionModerators.add(cellRuns.getShort(i));
+                            compositionBlocks.add(cellRuns.getShort(i + 1));
+                        }
+                    }
+                    cellCompositions[(column * cellsY) + cellY] = composition;
+                }
+            }
+        }
+        compositionStarts.add(compositionModerators.size());
+        cellColumnClasses = new int[cellsX * cellsZ];
+        final Object2IntOpenHashMap<IntArrayList> cellColumnClassMap = new Object2IntOpenHashMap<>();
+        for (int column = 0; column < cellColumnClasses.length; column++) {
+            final var columnCompositions = IntArrayList.wrap(Arrays.copyOfRange(cellCompositions, column * cellsY, (column + 1) * cellsY));
+            cellColumnClasses[column] = cellColumnClassMap.computeIfAbsent(columnCompositions, key -> cellColumnClassMap.size());
+        }
+        this.compositionStarts = compositionStarts.toIntArray();
+        this.compositionModerators = compositionModerators.toShortArray();
+        this.compositionBlocks = compositionBlocks.toShortArray();
+    }
+    
+    /**
+     * the one grid at this level of the exact moderatorIndices, which every simulation sharing it can use
+     */
+    public static CoarseModeratorGrid shared(ModeratorIndices moderatorIndices, int level, int x, int y, int z) {
+        if (level < 1 || level > MAX_LEVEL) {
+            throw new IllegalArgumentException("Coarse moderator grids only go from level 1 to " + MAX_LEVEL);
+        }
+        return SharedStructures.intern(((long) System.identityHashCode(moderatorIndices) << 32) | level, CoarseModeratorGrid.class, grid -> grid.moderatorIndices == moderatorIndices && grid.level == level, () -> new CoarseModeratorGrid(moderatorIndices, level, x, y, z));
+    }
+    
+    public int compositionCount() {
+        return compositionStarts.length - 1;
+    }
+    
+    public long footprintBytes() {
+        return cellCompositions.length * 4L + fuelColumns.length + cellColumnClasses.length * 4L + compositionStarts.length * 4L + compositionModerators.length * 4L;
+    }
+    
+    /**
+     * averaged moderator properties of every composition, one per simulation, only read while its rays are traced
+     */
+    public class Properties {
+        public final double[] absorption = new double[compositionCount()];
+        public final double[] moderation = new double[compositionCount()];
+        public final double[] heatEfficiency = new double[compositionCount()];
+        
+        /**
+         * retakes the averages, only needed once the moderator caches change
+         */
+        public void update(List<ModeratorCache> moderatorCaches) {
+            for (int i = 0; i < absorption.length; i++) {
+                double absorption = 0;
+                double moderation = 0;
+                double heatEfficiency = 0;
+                int count = 0;
+                final int start = compositionStarts[i];
+                final int end = compositionStarts[i + 1];
+                for (int j = start; j < end; j++) {
+                    final var properties = moderatorCaches.get(compositionModerators[j]);
+                    final int blocks = compositionBlocks[j];
+                    absorption += properties.absorption * blocks;
+                    moderation += properties.moderation * blocks;
+                    // weighted by absorption, heat comes from what a moderator absorbs, not from the moderator being there
+                    heatEfficiency += properties.heatEfficiency * properties.absorption * blocks;
+                    count += blocks;
+                }
+                this.absorption[i] = absorption / count;
+                this.moderation[i] = moderation / count;
+                this.heatEfficiency[i] = absorption != 0 ? heatEfficiency / absorption : 0;
+            }
+        }
+    }
+}
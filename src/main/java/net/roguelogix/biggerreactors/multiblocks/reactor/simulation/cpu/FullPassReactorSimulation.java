@@ -1,87 +1,306 @@
 package net.roguelogix.biggerreactors.multiblocks.reactor.simulation.cpu;
 
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
-//import jdk.incubator.vector.DoubleVector;
-//import jdk.incubator.vector.VectorOperators;
+import it.unimi.dsi.fastutil.objects.Reference2LongMap;
 import net.roguelogix.biggerreactors.Config;
 import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.base.BaseReactorSimulation;
 import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.base.ModeratorCache;
+import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.base.RayProgram;
+import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.base.ReactorSymmetry;
+import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.base.SharedStructures;
 import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.base.SimUtil;
+import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.base.SimulationFidelity;
 import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.SimulationDescription;
 import net.roguelogix.biggerreactors.registries.ReactorModeratorRegistry;
-import net.roguelogix.phosphophyllite.threading.Event;
-import net.roguelogix.phosphophyllite.threading.Queues;
+import net.roguelogix.phosphophyllite.serialization.PhosphophylliteCompound;
+import org.lwjgl.system.MemoryUtil;
 
+import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
 
 public class FullPassReactorSimulation extends BaseReactorSimulation {
     
     protected static final ReactorModeratorRegistry.IModeratorProperties CONTROL_ROD_MODERATOR = new ReactorModeratorRegistry.ModeratorProperties(-1, 0, 1, 0);
+    // the module must be added to the boot layer at JVM launch, if its not, VectorizedColumns is never loaded
+    public static final boolean VECTOR_API_AVAILABLE = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+    // below this many blocks, splitting the constructor's per block passes across threads costs more than it saves
+    private static final long PARALLEL_CONSTRUCTION_BLOCKS = 1 << 18;
+    protected static final short NON_UNIFORM_COLUMN = -1;
+    
     protected final ObjectArrayList<ModeratorCache> moderatorCaches = new ObjectArrayList<>();
-    protected final byte[] moderatorIndices;
+    protected final ObjectArrayList<ReactorModeratorRegistry.IModeratorProperties> moderators = new ObjectArrayList<>();
+    private final Object2IntOpenHashMap<ReactorModeratorRegistry.IModeratorProperties> moderatorLookup = new Object2IntOpenHashMap<>();
+    // palette entries map onto the moderators actually present, the palette can have the same moderator more than once
+    private int[] paletteModerators;
+    // both shared with other reactors of the same layout, see SharedStructures, only in native memory if NativeModeratorLayout is on and they are a byte wide
+    protected ModeratorIndices moderatorIndices;
+    // set once moderatorIndices' native memory is given back
+    private boolean released = false;
+    // if the Y column update runs on DoubleVector lanes, see VectorizedColumns
+    protected final boolean vectorized;
+    // per X/Z column, the moderator index if the column is that moderator all the way up, otherwise NON_UNIFORM_COLUMN, also shared
+    protected short[] columnModerators;
+    // level 1 and up, null unless coarse far field tracing is on, see CoarseModeratorGrid
+    @Nullable
+    protected CoarseModeratorGrid[] coarseGrids;
+    // averaged moderator properties for each of coarseGrids, retaken when moderatorCaches change, every request reads these
+    @Nullable
+    protected CoarseModeratorGrid.Properties[] coarseProperties;
+    // ray steps starting at least this far out use coarseGrids[0], twice as far coarseGrids[1], and so on
+    protected final double coarseRayDistance;
     protected final double[] initialIntensties;
+    protected final int moderatorCount;
+    @Nullable
+    protected ReactorSymmetry symmetry;
+    // false if rods are never traced through irradiationResponseCache or temperatureResponseTable, then neither is built
+    protected final boolean cachesResponses;
+    // one per ray table, as rods trace differently with every one of them
+    protected final IrradiationResponseCache[] irradiationResponseCaches = new IrradiationResponseCache[SimUtil.RAY_TABLE_LEVELS];
+    // null only if cachesResponses is false
+    protected IrradiationResponseCache irradiationResponseCache;
+    // null unless responses are interpolated between fuel temperature samples, then one per ray table like the caches, and used in their place
+    @Nullable
+    protected final TemperatureResponseTable[] temperatureResponseTables;
+    @Nullable
+    protected TemperatureResponseTable temperatureResponseTable;
+    protected int fidelityLevel = SimulationFidelity.FULL;
     
     public FullPassReactorSimulation(SimulationDescription simulationDescription) {
+        this(simulationDescription, false);
+    }
+    
+    public FullPassReactorSimulation(SimulationDescription simulationDescription, boolean vectorized) {
+        this(simulationDescription, vectorized, Config.CONFIG.Reactor.ModeSpecific.packedModeratorIndices(), true);
+    }
+    
+    /**
+     * @param packModeratorIndices pack layouts of up to 16 moderators two blocks to a byte, see ModeratorIndices
+     */
+    protected FullPassReactorSimulation(SimulationDescription simulationDescription, boolean vectorized, boolean packModeratorIndices, boolean cachesResponses) {
         super(simulationDescription);
-        final ObjectArrayList<ReactorModeratorRegistry.IModeratorProperties> moderators = new ObjectArrayList<>();
+        this.cachesResponses = cachesResponses;
         
+        moderatorLookup.defaultReturnValue(-1);
         moderators.add(CONTROL_ROD_MODERATOR);
-        for (int i = 0; i < x; i++) {
-            for (int j = 0; j < y; j++) {
-                for (int k = 0; k < z; k++) {
-                    final var moderator = moderatorProperties[i][j][k];
-                    if (moderator != null && !moderators.contains(moderator)) {
-                        moderators.add(moderator);
-                    }
+        paletteModerators = new int[moderatorPalette.length];
+        Arrays.fill(paletteModerators, -1);
+        paletteModerators[FUEL_ROD_PALETTE_INDEX] = 0;
+        
+        // only palette entries that are actually used get a moderator, the palette can have leftovers
+        final boolean[] paletteUsed = new boolean[moderatorPalette.length];
+        forEachXSlab(slabStart -> {
+            final int slabEnd = slabStart + y * z;
+            for (int i = slabStart; i < slabEnd; i++) {
+                final short paletteIndex = paletteIndex(i);
+                if (!paletteUsed[paletteIndex]) {
+                    paletteUsed[paletteIndex] = true;
                 }
             }
-        }
-        if (moderators.size() > 127) {
-            throw new IllegalArgumentException("Full pass reactor simulations only supports 127 moderator types, switch back to time sliced simulation to load world");
+        });
+        for (short i = 0; i < paletteUsed.length; i++) {
+            if (!paletteUsed[i] || paletteModerator(i) != -1) {
+                continue;
+            }
+            moderatorLookup.put(moderatorPalette[i], moderators.size());
+            paletteModerators[i] = moderators.size();
+            moderators.add(moderatorPalette[i]);
         }
         
         for (var moderator : moderators) {
             moderatorCaches.add(new ModeratorCache(moderator));
         }
         
-        moderatorIndices = new byte[x * y * z];
-        
-        for (int i = 0; i < x; i++) {
-            for (int j = 0; j < z; j++) {
-                for (int k = 0; k < y; k++) {
-                    var properties = moderatorProperties[i][k][j];
-                    byte moderatorIndex = 0;
-                    if (properties != null) {
-                        moderatorIndex = (byte) moderators.indexOf(properties);
-                    }
-                    final int linearIndex = (((i * z) + j) * y) + k;
-                    moderatorIndices[linearIndex] = moderatorIndex;
+        // native layouts are read a byte at a time, they only ever get as narrow as that
+        final boolean nativeLayout = Config.CONFIG.Reactor.ModeSpecific.NativeModeratorLayout;
+        final int indexWidth = ModeratorIndices.width(moderators.size(), packModeratorIndices && !nativeLayout);
+        // a byte per block even if they are packed, packing afterwards keeps slabs from sharing bytes
+        final byte[] byteModeratorIndices = indexWidth != ModeratorIndices.SHORT_WIDTH ? new byte[x * y * z] : null;
+        final short[] shortModeratorIndices = indexWidth == ModeratorIndices.SHORT_WIDTH ? new short[x * y * z] : null;
+        final int[] paletteModerators = this.paletteModerators;
+        forEachXSlab(slabStart -> {
+            final int slabEnd = slabStart + y * z;
+            for (int i = slabStart; i < slabEnd; i++) {
+                final int moderatorIndex = paletteModerators[paletteIndex(i)];
+                if (byteModeratorIndices != null) {
+                    byteModeratorIndices[i] = (byte) moderatorIndex;
+                } else {
+                    shortModeratorIndices[i] = (short) moderatorIndex;
                 }
             }
+        });
+        final ModeratorIndices moderatorIndices;
+        if (byteModeratorIndices != null) {
+            moderatorIndices = nativeLayout ? ModeratorIndices.sharedNative(byteModeratorIndices) : ModeratorIndices.shared(byteModeratorIndices, indexWidth);
+        } else {
+            moderatorIndices = ModeratorIndices.shared(shortModeratorIndices);
         }
+        this.moderatorIndices = moderatorIndices;
+        this.vectorized = vectorized && VECTOR_API_AVAILABLE;
+        
+        final short[] columnModerators = new short[x * z];
+        forEachXSlab(slabStart -> {
+            final int firstColumn = slabStart / y;
+            for (int i = firstColumn; i < firstColumn + z; i++) {
+                columnModerators[i] = columnModerator(moderatorIndices, i);
+            }
+        });
+        this.columnModerators = SharedStructures.intern(columnModerators);
+        coarseRayDistance = Config.CONFIG.Reactor.ModeSpecific.coarseRayDistance();
+        coarseGrids = coarseRayDistance > 0 ? coarseGrids(this.moderatorIndices) : null;
+        coarseProperties = coarseGrids != null ? coarseProperties(coarseGrids) : null;
         
         initialIntensties = new double[controlRods.length];
+        moderatorCount = moderators.size();
+        // symmetry is only used to share traces between rods in the caches
+        symmetry = cachesResponses && Config.CONFIG.Reactor.ModeSpecific.SymmetricIrradiation ? layoutSymmetry() : null;
+        irradiationResponseCache = cachesResponses ? irradiationResponseCache(0) : null;
+        temperatureResponseTables = cachesResponses && Config.CONFIG.Reactor.ModeSpecific.responseTableTemperatureStep() > 0 ? new TemperatureResponseTable[SimUtil.RAY_TABLE_LEVELS] : null;
+        temperatureResponseTable = temperatureResponseTable(0);
+        // a table traces at two temperatures
+        traceList = new int[temperatureResponseTables != null ? controlRods.length * 2 : controlRods.length];
         
-        fullPassIrradiationRequest = new IrradiationRequest(0, controlRods.length, this.moderatorCaches.toArray(new ModeratorCache[0]), y);
+        fullPassIrradiationRequest = new IrradiationRequest(this.moderatorCaches.toArray(new ModeratorCache[0]), y, this.vectorized, coarseProperties);
+    }
+    
+    private CoarseModeratorGrid[] coarseGrids(ModeratorIndices moderatorIndices) {
+        final var coarseGrids = new CoarseModeratorGrid[CoarseModeratorGrid.MAX_LEVEL];
+        for (int i = 0; i < coarseGrids.length; i++) {
+            coarseGrids[i] = CoarseModeratorGrid.shared(moderatorIndices, i + 1, x, y, z);
+        }
+        return coarseGrids;
+    }
+    
+    private CoarseModeratorGrid.Properties[] coarseProperties(CoarseModeratorGrid[] coarseGrids) {
+        final var coarseProperties = new CoarseModeratorGrid.Properties[coarseGrids.length];
+        for (int i = 0; i < coarseGrids.length; i++) {
+            coarseProperties[i] = coarseGrids[i].new Properties();
+            // moderators that were already there won't show up as changed
+            coarseProperties[i].update(moderatorCaches);
+        }
+        return coarseProperties;
+    }
+    
+    /**
+     * runs slabAction with the first linear index of every X slab, on the simulation pool for big reactors
+     * each slab is y * z blocks long, and no two slabs overlap
+     */
+    private void forEachXSlab(IntConsumer slabAction) {
+        if ((long) x * y * z < PARALLEL_CONSTRUCTION_BLOCKS) {
+            for (int i = 0; i < x; i++) {
+                slabAction.accept(i * y * z);
+            }
+            return;
+        }
+        ReactorSimulationPool.pool().submit(() -> IntStream.range(0, x).parallel().forEach(i -> slabAction.accept(i * y * z))).join();
+    }
+    
+    private short columnModerator(ModeratorIndices moderatorIndices, int column) {
+        final int columnStart = column * y;
+        final int moderatorIndex = moderatorIndices.get(columnStart);
+        if (moderatorIndex == 0) {
+            // fuel rods are never uniform, their insertion changes how they trace
+            return NON_UNIFORM_COLUMN;
+        }
+        for (int i = columnStart + 1; i < columnStart + y; i++) {
+            if (moderatorIndices.get(i) != moderatorIndex) {
+                return NON_UNIFORM_COLUMN;
+            }
+        }
+        return (short) moderatorIndex;
+    }
+    
+    private ReactorSymmetry layoutSymmetry() {
+        return new ReactorSymmetry(moderatorIndices::get, x, y, z);
+    }
+    
+    /**
+     * index into moderators of the palette entry, -1 if the moderator isnt present
+     */
+    private int paletteModerator(short paletteIndex) {
+        if (paletteIndex >= paletteModerators.length) {
+            final int oldLength = paletteModerators.length;
+            paletteModerators = Arrays.copyOf(paletteModerators, moderatorPalette.length);
+            Arrays.fill(paletteModerators, oldLength, paletteModerators.length, -1);
+        }
+        if (paletteModerators[paletteIndex] == -1) {
+            paletteModerators[paletteIndex] = moderatorLookup.getInt(moderatorPalette[paletteIndex]);
+        }
+        return paletteModerators[paletteIndex];
+    }
+    
+    @Override
+    protected boolean canChangeModerator(short paletteIndex) {
+        // the moderator caches are copied into every irradiation request, so only moderators already present can be swapped in
+        return paletteModerator(paletteIndex) != -1;
+    }
+    
+    @Override
+    protected void onLayoutChanged(IntList changedBlocks) {
+        // copied as other reactors may still be using them
+        final IntArrayList changedModerators = new IntArrayList(changedBlocks.size());
+        for (int i = 0; i < changedBlocks.size(); i++) {
+            changedModerators.add(paletteModerator(paletteIndex(changedBlocks.getInt(i))));
+        }
+        // the moderators present never change, so neither does the width
+        final ModeratorIndices moderatorIndices = this.moderatorIndices.changed(changedBlocks, changedModerators);
+        this.moderatorIndices.release();
+        this.moderatorIndices = moderatorIndices;
+        final short[] columnModerators = this.columnModerators.clone();
+        for (int i = 0; i < changedBlocks.size(); i++) {
+            final int column = changedBlocks.getInt(i) / y;
+            columnModerators[column] = columnModerator(moderatorIndices, column);
+        }
+        this.columnModerators = SharedStructures.intern(columnModerators);
+        if (coarseGrids != null) {
+            coarseGrids = coarseGrids(this.moderatorIndices);
+            coarseProperties = coarseProperties(coarseGrids);
+        }
+        // requests hold onto the coarse properties
+        fullPassIrradiationRequest = new IrradiationRequest(this.moderatorCaches.toArray(new ModeratorCache[0]), y, vectorized, coarseProperties);
+        if (symmetry != null) {
+            symmetry = layoutSymmetry();
+        }
+        // responses and structural classes are all for the old layout
+        Arrays.fill(irradiationResponseCaches, null);
+        irradiationResponseCache = cachesResponses ? irradiationResponseCache(SimulationFidelity.rayLevel(fidelityLevel)) : null;
+        if (temperatureResponseTables != null) {
+            Arrays.fill(temperatureResponseTables, null);
+        }
+        temperatureResponseTable = temperatureResponseTable(SimulationFidelity.rayLevel(fidelityLevel));
     }
     
     protected static class IrradiationRequest {
-        public final int baseControlRod;
-        public final int controlRodCount;
-        public final IrradiationResult result = new IrradiationResult();
         public final ModeratorCache[] moderatorCache;
         public final double[] intensities;
         public final double[] hardnesses;
+        @Nullable
+        private final VectorizedColumns vectorizedColumns;
+        // the simulation's, one per coarse grid level, null to trace everything block by block
+        @Nullable
+        public final CoarseModeratorGrid.Properties[] coarseProperties;
+        // results of the last traceRays
+        public double fuelRFAdded;
+        public double fuelRadAdded;
+        public double caseRFAdded;
         
-        public IrradiationRequest(int baseControlRod, int controlRodCount, ModeratorCache[] moderatorCache, int controlRodLength) {
-            this.baseControlRod = baseControlRod;
-            this.controlRodCount = controlRodCount;
+        public IrradiationRequest(ModeratorCache[] moderatorCache, int controlRodLength, boolean vectorized, @Nullable CoarseModeratorGrid.Properties[] coarseProperties) {
             this.moderatorCache = new ModeratorCache[moderatorCache.length];
             for (int i = 0; i < moderatorCache.length; i++) {
                 this.moderatorCache[i] = moderatorCache[i].duplicate();
             }
             intensities = new double[controlRodLength];
             hardnesses = new double[controlRodLength];
+            vectorizedColumns = vectorized ? new VectorizedColumns(this.moderatorCache, controlRodLength) : null;
+            this.coarseProperties = coarseProperties;
         }
         
         public void updateCache() {
@@ -89,23 +308,25 @@ public class FullPassReactorSimulation extends BaseReactorSimulation {
             for (int i = 0; i < moderatorCache.length; i++) {
                 moderatorCache[i].update();
             }
+            if (vectorizedColumns != null) {
+                vectorizedColumns.updateCache();
+            }
         }
     }
     
-    protected static class IrradiationResult {
-        public double fuelRFAdded = 0;
-        public double fuelRadAdded = 0;
-        public double caseRFAdded = 0;
-    }
-    
     protected double fuelAbsorptionTemperatureCoefficient;
     protected double FuelAbsorptionCoefficient;
     protected double FuelModerationFactor;
     protected double fuelHardnessMultiplier;
     protected double rayMultiplier;
+    // rays stop once the intensity left in all of their Y levels together is below this
+    protected double terminationIntensity;
     protected double initialHardness;
     
     protected IrradiationRequest fullPassIrradiationRequest;
+    // rods that need to be traced this tick, see IrradiationResponseCache.buildTraceList
+    protected final int[] traceList;
+    protected int traceCount = 0;
     
     protected double rawFuelUsage = 0;
     protected double fuelRFAdded = 0;
@@ -119,17 +340,77 @@ public class FullPassReactorSimulation extends BaseReactorSimulation {
         }
         
         setupIrradiationTick();
+        prepareIrradiationTraces();
         fullPassIrradiationRequest.updateCache();
-        runIrradiationRequest(fullPassIrradiationRequest);
-        collectIrradiationResult(fullPassIrradiationRequest.result);
+        runIrradiationRequest(fullPassIrradiationRequest, 0, traceCount);
+        collectIrradiationResponses();
         return realizeIrradiationTick();
     }
     
+    protected IrradiationResponseCache irradiationResponseCache(int rayLevel) {
+        if (irradiationResponseCaches[rayLevel] == null) {
+            irradiationResponseCaches[rayLevel] = new IrradiationResponseCache(controlRods, rayProgram(rayLevel), moderatorIndices, moderatorCount, coarseGrids, coarseRayDistance, symmetry, x, y, z);
+        }
+        return irradiationResponseCaches[rayLevel];
+    }
+    
+    @Nullable
+    protected TemperatureResponseTable temperatureResponseTable(int rayLevel) {
+        if (temperatureResponseTables == null) {
+            return null;
+        }
+        if (temperatureResponseTables[rayLevel] == null) {
+            final var rayProgram = rayProgram(rayLevel);
+            final var moderatorIndices = this.moderatorIndices;
+            final var coarseGrids = this.coarseGrids;
+            final var symmetry = this.symmetry;
+            temperatureResponseTables[rayLevel] = new TemperatureResponseTable(controlRods.length, Config.CONFIG.Reactor.ModeSpecific.responseTableTemperatureStep(),
+                    () -> new IrradiationResponseCache(controlRods, rayProgram, moderatorIndices, moderatorCount, coarseGrids, coarseRayDistance, symmetry, x, y, z));
+        }
+        return temperatureResponseTables[rayLevel];
+    }
+    
+    /**
+     * switches ray tables if the fidelity level asks for a different one, must not be called with irradiation requests in flight
+     */
+    protected void updateFidelity() {
+        final int fidelityLevel = SimulationFidelity.level();
+        if (fidelityLevel == this.fidelityLevel) {
+            return;
+        }
+        final int rayLevel = SimulationFidelity.rayLevel(fidelityLevel);
+        final boolean rayLevelChanged = rayLevel != SimulationFidelity.rayLevel(this.fidelityLevel);
+        this.fidelityLevel = fidelityLevel;
+        if (rayLevelChanged) {
+            rayProgram = rayProgram(rayLevel);
+            if (cachesResponses) {
+                irradiationResponseCache = irradiationResponseCache(rayLevel);
+                // whatever it has is from the last time this ray table was used
+                irradiationResponseCache.invalidateAll();
+            }
+            temperatureResponseTable = temperatureResponseTable(rayLevel);
+            if (temperatureResponseTable != null) {
+                temperatureResponseTable.invalidateAll();
+            }
+            onRayProgramChanged();
+        }
+    }
+    
+    protected void onRayProgramChanged() {
+    }
+    
     protected void setupIrradiationTick() {
-        moderatorCaches.forEach(ModeratorCache::update);
-        
-        // Base value for radiation production penalties. 0-1, caps at about 3000C;
-        final double radiationPenaltyBase = Math.exp(-Config.CONFIG.Reactor.RadPenaltyShiftMultiplier * Math.exp(-0.001 * Config.CONFIG.Reactor.RadPenaltyRateMultiplier * (fuelHeat.temperature() - 273.15)));
+        updateFidelity();
+        boolean moderatorsChanged = false;
+        //noinspection ForLoopReplaceableByForEach
+        for (int i = 0; i < moderatorCaches.size(); i++) {
+            moderatorsChanged |= moderatorCaches.get(i).update();
+        }
+        if (moderatorsChanged && coarseProperties != null) {
+            for (CoarseModeratorGrid.Properties properties : coarseProperties) {
+                properties.update(moderatorCaches);
+            }
+        }
         
         // Raw amount - what's actually in the tanks
         // Effective amount - how
@@ -142,12 +423,10 @@ public class FullPassReactorSimulation extends BaseReactorSimulation {
         // Scale up a second time based on scaled amount in each fuel rod. Provides an incentive for making reactors that aren't just pancakes.
         final double scaledRadIntensity = Math.pow((Math.pow((rawRadIntensity), Config.CONFIG.Reactor.FuelReactivity) / controlRods.length), Config.CONFIG.Reactor.FuelReactivity) * controlRods.length;
         
-        // Radiation hardness starts at 20% and asymptotically approaches 100% as heat rises.
-        // This will make radiation harder and harder to capture.
-        initialHardness = Math.min(1.0, 0.2f + (0.8 * radiationPenaltyBase));
+        initialHardness = initialHardness(fuelHeat.temperature());
         
         final double rawIntensity = (1f + (-Config.CONFIG.Reactor.RadIntensityScalingMultiplier * Math.exp(-10f * Config.CONFIG.Reactor.RadIntensityScalingShiftMultiplier * Math.exp(-0.001f * Config.CONFIG.Reactor.RadIntensityScalingRateExponentMultiplier * (fuelHeat.temperature() - 273.15)))));
-        fuelAbsorptionTemperatureCoefficient = (1.0 - (Config.CONFIG.Reactor.FuelAbsorptionScalingMultiplier * Math.exp(-10 * Config.CONFIG.Reactor.FuelAbsorptionScalingShiftMultiplier * Math.exp(-0.001 * Config.CONFIG.Reactor.FuelAbsorptionScalingRateExponentMultiplier * (fuelHeat.temperature() - 273.15)))));
+        fuelAbsorptionTemperatureCoefficient = fuelAbsorptionTemperatureCoefficient(fuelHeat.temperature());
 
 //        final double controlRodModifier = 1.0 / controlRods.length;
         
@@ -156,7 +435,8 @@ public class FullPassReactorSimulation extends BaseReactorSimulation {
         FuelAbsorptionCoefficient = Config.CONFIG.Reactor.FuelAbsorptionCoefficient;
         FuelModerationFactor = Config.CONFIG.Reactor.FuelModerationFactor;
         fuelHardnessMultiplier = 1 / Config.CONFIG.Reactor.FuelHardnessDivisor;
-        rayMultiplier = 1.0 / (double) (SimUtil.rays.size() * y);
+        rayMultiplier = 1.0 / (double) (rayProgram.rayCount * y);
+        terminationIntensity = rayMultiplier * y * Config.CONFIG.Reactor.ModeSpecific.rayTerminationThreshold();
         
         double rawFuelUsage = 0;
         double fuelRFAdded = 0;
@@ -184,13 +464,56 @@ public class FullPassReactorSimulation extends BaseReactorSimulation {
         this.fuelRFAdded = fuelRFAdded;
     }
     
-    protected void collectIrradiationResult(IrradiationResult result) {
-        fuelRFAdded += result.fuelRFAdded;
-        fuelRadAdded += result.fuelRadAdded;
-        caseRFAdded += result.caseRFAdded;
-        result.fuelRFAdded = 0;
-        result.fuelRadAdded = 0;
-        result.caseRFAdded = 0;
+    static double initialHardness(double fuelTemperature) {
+        // Base value for radiation production penalties. 0-1, caps at about 3000C;
+        final double radiationPenaltyBase = Math.exp(-Config.CONFIG.Reactor.RadPenaltyShiftMultiplier * Math.exp(-0.001 * Config.CONFIG.Reactor.RadPenaltyRateMultiplier * (fuelTemperature - 273.15)));
+        // Radiation hardness starts at 20% and asymptotically approaches 100% as heat rises.
+        // This will make radiation harder and harder to capture.
+        return Math.min(1.0, 0.2f + (0.8 * radiationPenaltyBase));
+    }
+    
+    static double fuelAbsorptionTemperatureCoefficient(double fuelTemperature) {
+        return (1.0 - (Config.CONFIG.Reactor.FuelAbsorptionScalingMultiplier * Math.exp(-10 * Config.CONFIG.Reactor.FuelAbsorptionScalingShiftMultiplier * Math.exp(-0.001 * Config.CONFIG.Reactor.FuelAbsorptionScalingRateExponentMultiplier * (fuelTemperature - 273.15)))));
+    }
+    
+    protected void prepareIrradiationTraces() {
+        final int maxTraceCount = SimulationFidelity.rodSampling(fidelityLevel) ? (controlRods.length + SimulationFidelity.ROD_SAMPLING_DIVISOR - 1) / SimulationFidelity.ROD_SAMPLING_DIVISOR : Integer.MAX_VALUE;
+        if (temperatureResponseTable != null) {
+            traceCount = temperatureResponseTable.buildTraceList(fuelHeat.temperature(), FuelAbsorptionCoefficient, FuelModerationFactor, fuelHardnessMultiplier, moderatorCaches, Config.CONFIG.Reactor.ModeSpecific.irradiationResponseTolerance(), traceList, maxTraceCount);
+        } else {
+            irradiationResponseCache.invalidate(initialHardness, fuelAbsorptionTemperatureCoefficient, FuelAbsorptionCoefficient, FuelModerationFactor, fuelHardnessMultiplier, moderatorCaches, Config.CONFIG.Reactor.ModeSpecific.irradiationResponseTolerance());
+            traceCount = irradiationResponseCache.buildTraceList(traceList, maxTraceCount);
+        }
+    }
+    
+    protected void collectIrradiationResponses() {
+        final double[] fuelRFResponses;
+        final double[] fuelRadResponses;
+        final double[] caseRFResponses;
+        if (temperatureResponseTable != null) {
+            temperatureResponseTable.resolveFollowers();
+            fuelRFResponses = temperatureResponseTable.fuelRFAdded;
+            fuelRadResponses = temperatureResponseTable.fuelRadAdded;
+            caseRFResponses = temperatureResponseTable.caseRFAdded;
+        } else {
+            irradiationResponseCache.resolveFollowers();
+            fuelRFResponses = irradiationResponseCache.fuelRFAdded;
+            fuelRadResponses = irradiationResponseCache.fuelRadAdded;
+            caseRFResponses = irradiationResponseCache.caseRFAdded;
+        }
+        double fuelRFAdded = 0;
+        double fuelRadAdded = 0;
+        double caseRFAdded = 0;
+        for (int i = 0; i < controlRods.length; i++) {
+            // everything a trace adds up is linear in the rod's initial intensity
+            final double initialIntensity = initialIntensties[i];
+            fuelRFAdded += fuelRFResponses[i] * initialIntensity;
+            fuelRadAdded += fuelRadResponses[i] * initialIntensity;
+            caseRFAdded += caseRFResponses[i] * initialIntensity;
+        }
+        this.fuelRFAdded += fuelRFAdded;
+        this.fuelRadAdded += fuelRadAdded;
+        this.caseRFAdded += caseRFAdded;
     }
     
     protected double realizeIrradiationTick() {
@@ -219,7 +542,46 @@ public class FullPassReactorSimulation extends BaseReactorSimulation {
         return rawFuelUsage;
     }
     
-    protected void runIrradiationRequest(IrradiationRequest request) {
+    /**
+     * traces traceList[traceStart] until traceList[traceEnd], the request is scratch space, so only one thread may use it at a time
+     */
+    protected void runIrradiationRequest(IrradiationRequest request, int traceStart, int traceEnd) {
+        for (int i = traceStart; i < traceEnd; i++) {
+            traceControlRod(request, traceList[i]);
+        }
+    }
+    
+    /**
+     * @param entry a trace list entry, the rod itself unless there is a temperature response table
+     */
+    protected void traceControlRod(IrradiationRequest request, int entry) {
+        final var responseTable = this.temperatureResponseTable;
+        if (responseTable != null) {
+            final int cri = responseTable.rod(entry);
+            traceRays(request, cri, 0, rayProgram.rayCount, responseTable.initialHardness(entry), responseTable.fuelAbsorptionTemperatureCoefficient(entry));
+            final var responseCache = responseTable.cache(entry);
+            responseCache.fuelRFAdded[cri] = request.fuelRFAdded;
+            responseCache.fuelRadAdded[cri] = request.fuelRadAdded;
+            responseCache.caseRFAdded[cri] = request.caseRFAdded;
+            return;
+        }
+        traceRays(request, entry, 0, rayProgram.rayCount);
+        irradiationResponseCache.fuelRFAdded[entry] = request.fuelRFAdded;
+        irradiationResponseCache.fuelRadAdded[entry] = request.fuelRadAdded;
+        irradiationResponseCache.caseRFAdded[entry] = request.caseRFAdded;
+    }
+    
+    /**
+     * traces rays firstRay until lastRay of the rod at unit intensity, and leaves what they added up in the request
+     */
+    protected void traceRays(IrradiationRequest request, int cri, int firstRay, int lastRay) {
+        traceRays(request, cri, firstRay, lastRay, initialHardness, fuelAbsorptionTemperatureCoefficient);
+    }
+    
+    /**
+     * same as above, at the given fuel temperature dependent parameters instead of this tick's
+     */
+    protected void traceRays(IrradiationRequest request, int cri, int firstRay, int lastRay, double initialHardness, double fuelAbsorptionTemperatureCoefficient) {
         final double FuelAbsorptionCoefficient = this.FuelAbsorptionCoefficient;
         final double FuelModerationFactor = this.FuelModerationFactor;
         final double fuelHardnessMultiplier = this.fuelHardnessMultiplier;
@@ -230,74 +592,218 @@ public class FullPassReactorSimulation extends BaseReactorSimulation {
         double caseRFAdded = 0;
         double[] intensities = request.intensities;
         double[] hardnesses = request.hardnesses;
-        int rods = 0;
-        for (int cro = 0; cro < request.controlRodCount; cro++) {
-            final int cri = cro + request.baseControlRod;
-            final var controlRod = controlRods[cri];
-            final var initialIntensity = initialIntensties[cri] * rayMultiplier;
-            for (int i = 0; i < SimUtil.rays.size(); i++) {
-                for (int j = 0; j < intensities.length; j++) {
-                    intensities[j] = initialIntensity;
-                    hardnesses[j] = initialHardness;
+        final int[] rayStarts = rayProgram.rayStarts;
+        final int[] steps = rayProgram.steps;
+        final double[] lengths = rayProgram.lengths;
+        final var vectorizedColumns = request.vectorizedColumns;
+        final var controlRod = controlRods[cri];
+        // traced at unit intensity, runIrradiationRequest scales it by the rod's actual intensity
+        final var initialIntensity = rayMultiplier;
+        final double terminationIntensity = this.terminationIntensity;
+        final short[] columnModerators = this.columnModerators;
+        final double[] distances = rayProgram.distances;
+        final var coarseGrids = request.coarseProperties != null ? this.coarseGrids : null;
+        // only the one for the width and memory the indices are stored in is set, each has its own copy of the scalar column loop
+        final var moderatorIndices = this.moderatorIndices;
+        final long nativeModeratorIndices = moderatorIndices.nativeBytes != null ? moderatorIndices.nativeBytes.address : MemoryUtil.NULL;
+        final byte[] nibbleModeratorIndices = moderatorIndices.width == ModeratorIndices.NIBBLE_WIDTH ? moderatorIndices.bytes : null;
+        final byte[] byteModeratorIndices = moderatorIndices.width == ModeratorIndices.BYTE_WIDTH ? moderatorIndices.bytes : null;
+        final short[] shortModeratorIndices = moderatorIndices.shorts;
+        final double coarseRayDistance = coarseGrids != null ? this.coarseRayDistance : Double.POSITIVE_INFINITY;
+        for (int i = firstRay; i < lastRay; i++) {
+            for (int j = 0; j < intensities.length; j++) {
+                intensities[j] = initialIntensity;
+                hardnesses[j] = initialHardness;
+            }
+            final int rayEnd = rayStarts[i + 1];
+            for (int j = rayStarts[i]; j < rayEnd; j++) {
+                final int stepIndex = j * RayProgram.STEP_STRIDE;
+                final int currentX = controlRod.x + steps[stepIndex + RayProgram.STEP_X];
+                final int currentZ = controlRod.z + steps[stepIndex + RayProgram.STEP_Z];
+                if (currentX < 0 || currentX >= this.x ||
+                            currentZ < 0 || currentZ >= this.z) {
+                    break;
                 }
-                final var raySteps = SimUtil.rays.get(i);
-                //noinspection ForLoopReplaceableByForEach
-                for (int j = 0; j < raySteps.size(); j++) {
-                    final var step = raySteps.get(j);
-                    final int currentX = controlRod.x + step.offset.x;
-                    final int offsetY = step.offset.y;
-                    final int currentZ = controlRod.z + step.offset.z;
-                    if (currentX < 0 || currentX >= this.x ||
-                                currentZ < 0 || currentZ >= this.z) {
-                        break;
+                final int offsetY = steps[stepIndex + RayProgram.STEP_Y];
+                // only the Y levels that stay inside the reactor, precomputed per step
+                final int kStart = steps[stepIndex + RayProgram.STEP_K_START];
+                final int kEnd = steps[stepIndex + RayProgram.STEP_K_END];
+                final double stepLength = lengths[j];
+                final int column = (currentX * z) + currentZ;
+                int moderatorIndexIndex = column * y;
+                final int baseModeratorIndex = getModeratorIndex(moderatorIndexIndex);
+                // intensity left over all Y levels once this step is done
+                double remainingIntensity = 0;
+                final short columnModerator = columnModerators[column];
+                final int coarseLevel = coarseLevel(distances[j], coarseRayDistance);
+                final CoarseModeratorGrid coarseGrid = coarseLevel > 0 ? coarseGrids[coarseLevel - 1] : null;
+                final int cellX = currentX >> coarseLevel;
+                final int cellZ = currentZ >> coarseLevel;
+                // uniform columns are already merged exactly, the coarse grid only takes over where they aren't
+                if (coarseGrid != null && columnModerator == NON_UNIFORM_COLUMN && !coarseGrid.fuelColumns[(cellX * coarseGrid.cellsZ) + cellZ]) {
+                    // far enough out that the average of the cell will do, following steps that stay in the same cell are merged into this one
+                    assert request.coarseProperties != null;
+                    final var properties = request.coarseProperties[coarseLevel - 1];
+                    double runLength = stepLength;
+                    int runEnd = j + 1;
+                    // the Y range only ever shrinks along a ray, Y levels that leave the reactor partway through the run stop at its start
+                    int runKStart = kStart;
+                    int runKEnd = kEnd;
+                    for (; runEnd < rayEnd; runEnd++) {
+                        final int runStepIndex = runEnd * RayProgram.STEP_STRIDE;
+                        final int runX = controlRod.x + steps[runStepIndex + RayProgram.STEP_X];
+                        final int runZ = controlRod.z + steps[runStepIndex + RayProgram.STEP_Z];
+                        if ((steps[runStepIndex + RayProgram.STEP_Y] >> coarseLevel) != (offsetY >> coarseLevel) ||
+                                    runX < 0 || runX >= this.x || runZ < 0 || runZ >= this.z ||
+                                    (runX >> coarseLevel) != cellX || (runZ >> coarseLevel) != cellZ) {
+                            break;
+                        }
+                        runKStart = steps[runStepIndex + RayProgram.STEP_K_START];
+                        runKEnd = steps[runStepIndex + RayProgram.STEP_K_END];
+                        runLength += lengths[runEnd];
                     }
-                    int moderatorIndexIndex = ((((currentX * z) + currentZ)) * y);
-                    final byte baseModeratorIndex = getModeratorIndex(moderatorIndexIndex);
-                    if (baseModeratorIndex != 0) {
-                        for (int k = 0; k < y; k++) {
-                            final var currentY = k + offsetY;
-                            if (currentY < 0) {
-                                // skip until == 0
-                                k -= currentY;
-                                k--;
-                                continue;
-                            }
-                            if (currentY >= y) {
-                                break;
+                    final int[] cellCompositions = coarseGrid.cellCompositions;
+                    final int cellColumn = ((cellX * coarseGrid.cellsZ) + cellZ) * coarseGrid.cellsY;
+                    // one cell at a time up the column, every Y level in a cell shares its properties
+                    for (int k = runKStart; k < runKEnd; ) {
+                        final int cellY = (k + offsetY) >> coarseLevel;
+                        final int cellKEnd = Math.min(runKEnd, ((cellY + 1) << coarseLevel) - offsetY);
+                        final int composition = cellCompositions[cellColumn + cellY];
+                        final double stepAbsorption = properties.absorption[composition] * runLength;
+                        final double hardnessDivisor = (properties.moderation[composition] * runLength) + 1.0;
+                        double radiationAbsorbedTotal = 0;
+                        for (; k < cellKEnd; k++) {
+                            final double neutronIntensity = intensities[k];
+                            final double neutronHardness = hardnesses[k];
+                            final double radiationAbsorbed = neutronIntensity * stepAbsorption * (1.0 - neutronHardness);
+                            final double newIntensity = Math.max(0, neutronIntensity - radiationAbsorbed);
+                            intensities[k] = newIntensity;
+                            hardnesses[k] = neutronHardness / hardnessDivisor;
+                            radiationAbsorbedTotal += radiationAbsorbed;
+                            remainingIntensity += newIntensity;
+                        }
+                        caseRFAdded += properties.heatEfficiency[composition] * radiationAbsorbedTotal;
+                    }
+                    j = runEnd - 1;
+                } else if (columnModerator != NON_UNIFORM_COLUMN) {
+                    // following steps at the same Y offset through columns of the same moderator all go in one pass
+                    int runEnd = j + 1;
+                    for (; runEnd < rayEnd; runEnd++) {
+                        final int runStepIndex = runEnd * RayProgram.STEP_STRIDE;
+                        final int runX = controlRod.x + steps[runStepIndex + RayProgram.STEP_X];
+                        final int runZ = controlRod.z + steps[runStepIndex + RayProgram.STEP_Z];
+                        if (steps[runStepIndex + RayProgram.STEP_Y] != offsetY ||
+                                    runX < 0 || runX >= this.x || runZ < 0 || runZ >= this.z ||
+                                    columnModerators[(runX * z) + runZ] != columnModerator) {
+                            break;
+                        }
+                    }
+                    if (vectorizedColumns != null) {
+                        remainingIntensity = vectorizedColumns.moderatorRun(intensities, hardnesses, kStart, kEnd, columnModerator, lengths, j, runEnd);
+                    } else {
+                        final var properties = moderatorCache[columnModerator];
+                        final double absorption = properties.absorption;
+                        final double moderation = properties.moderation;
+                        double radiationAbsorbedTotal = 0;
+                        // Y levels stay the inner loop, they are independent of each other where steps aren't
+                        for (int step = j; step < runEnd; step++) {
+                            final double runStepLength = lengths[step];
+                            final double stepAbsorption = absorption * runStepLength;
+                            final double hardnessDivisor = (moderation * runStepLength) + 1.0;
+                            remainingIntensity = 0;
+                            for (int k = kStart; k < kEnd; k++) {
+                                final double neutronIntensity = intensities[k];
+                                final double neutronHardness = hardnesses[k];
+                                final double radiationAbsorbed = neutronIntensity * stepAbsorption * (1.0 - neutronHardness);
+                                final double newIntensity = Math.max(0, neutronIntensity - radiationAbsorbed);
+                                intensities[k] = newIntensity;
+                                hardnesses[k] = neutronHardness / hardnessDivisor;
+                                radiationAbsorbedTotal += radiationAbsorbed;
+                                remainingIntensity += newIntensity;
                             }
+                        }
+                        caseRFAdded += properties.heatEfficiency * radiationAbsorbedTotal;
+                    }
+                    j = runEnd - 1;
+                } else if (baseModeratorIndex != 0) {
+                    if (vectorizedColumns != null) {
+                        remainingIntensity = vectorizedColumns.moderatorColumn(intensities, hardnesses, kStart, kEnd, moderatorIndices, moderatorIndexIndex + offsetY, stepLength);
+                    } else if (nibbleModeratorIndices != null) {
+                        for (int k = kStart; k < kEnd; k++) {
+                            final int blockIndex = moderatorIndexIndex + k + offsetY;
                             final double neutronIntensity = intensities[k];
                             final double neutronHardness = hardnesses[k];
                             
-                            final byte moderatorIndex = moderatorIndices[moderatorIndexIndex + currentY];
+                            final int moderatorIndex = (nibbleModeratorIndices[blockIndex >> 1] >> ((blockIndex & 1) << 2)) & 15;
                             final var properties = moderatorCache[moderatorIndex];
-                            final double radiationAbsorbed = neutronIntensity * properties.absorption * (1.0 - neutronHardness) * step.length;
-                            intensities[k] = Math.max(0, neutronIntensity - radiationAbsorbed);
-                            hardnesses[k] = neutronHardness / ((properties.moderation * step.length) + 1.0);
+                            final double radiationAbsorbed = neutronIntensity * properties.absorption * (1.0 - neutronHardness) * stepLength;
+                            final double newIntensity = Math.max(0, neutronIntensity - radiationAbsorbed);
+                            intensities[k] = newIntensity;
+                            hardnesses[k] = neutronHardness / ((properties.moderation * stepLength) + 1.0);
                             caseRFAdded += properties.heatEfficiency * radiationAbsorbed;
+                            remainingIntensity += newIntensity;
+                        }
+                    } else if (shortModeratorIndices != null) {
+                        for (int k = kStart; k < kEnd; k++) {
+                            final var currentY = k + offsetY;
+                            final double neutronIntensity = intensities[k];
+                            final double neutronHardness = hardnesses[k];
+                            
+                            final short moderatorIndex = shortModeratorIndices[moderatorIndexIndex + currentY];
+                            final var properties = moderatorCache[moderatorIndex];
+                            final double radiationAbsorbed = neutronIntensity * properties.absorption * (1.0 - neutronHardness) * stepLength;
+                            final double newIntensity = Math.max(0, neutronIntensity - radiationAbsorbed);
+                            intensities[k] = newIntensity;
+                            hardnesses[k] = neutronHardness / ((properties.moderation * stepLength) + 1.0);
+                            caseRFAdded += properties.heatEfficiency * radiationAbsorbed;
+                            remainingIntensity += newIntensity;
+                        }
+                    } else if (nativeModeratorIndices != MemoryUtil.NULL) {
+                        for (int k = kStart; k < kEnd; k++) {
+                            final var currentY = k + offsetY;
+                            final double neutronIntensity = intensities[k];
+                            final double neutronHardness = hardnesses[k];
+                            
+                            final byte moderatorIndex = MemoryUtil.memGetByte(nativeModeratorIndices + moderatorIndexIndex + currentY);
+                            final var properties = moderatorCache[moderatorIndex];
+                            final double radiationAbsorbed = neutronIntensity * properties.absorption * (1.0 - neutronHardness) * stepLength;
+                            final double newIntensity = Math.max(0, neutronIntensity - radiationAbsorbed);
+                            intensities[k] = newIntensity;
+                            hardnesses[k] = neutronHardness / ((properties.moderation * stepLength) + 1.0);
+                            caseRFAdded += properties.heatEfficiency * radiationAbsorbed;
+                            remainingIntensity += newIntensity;
                         }
                     } else {
-                        // Scale control rod insertion 0..1
-                        // TODO: race condition with computer craft is possible here
-                        final double controlRodInsertion = controlRodsXZ[currentX][currentZ].insertion * .001;
-                        final double halfRodInsertion = controlRodInsertion * 0.5;
-                        // Full insertion doubles the moderation factor of the fuel as well as adding its own level
-                        final double fuelModerationFactor = FuelModerationFactor + (FuelModerationFactor * controlRodInsertion + controlRodInsertion);
-                        final double hardnessMultiplier = 1.0 / (((fuelModerationFactor - 1.0) * step.length) + 1.0);
-                        final double stepFuelAbsorptionCoefficient = FuelAbsorptionCoefficient * step.length;
-                        
-                        for (int k = 0; k < y; k++) {
+                        assert byteModeratorIndices != null;
+                        for (int k = kStart; k < kEnd; k++) {
                             final var currentY = k + offsetY;
-                            if (currentY < 0) {
-                                // skip until == 0
-                                k -= currentY;
-                                k--;
-                                continue;
-                            }
-                            if (currentY >= y) {
-                                break;
-                            }
-                            rods++;
+                            final double neutronIntensity = intensities[k];
+                            final double neutronHardness = hardnesses[k];
                             
+                            final byte moderatorIndex = byteModeratorIndices[moderatorIndexIndex + currentY];
+                            final var properties = moderatorCache[moderatorIndex];
+                            final double radiationAbsorbed = neutronIntensity * properties.absorption * (1.0 - neutronHardness) * stepLength;
+                            final double newIntensity = Math.max(0, neutronIntensity - radiationAbsorbed);
+                            intensities[k] = newIntensity;
+                            hardnesses[k] = neutronHardness / ((properties.moderation * stepLength) + 1.0);
+                            caseRFAdded += properties.heatEfficiency * radiationAbsorbed;
+                            remainingIntensity += newIntensity;
+                        }
+                    }
+                } else {
+                    // Scale control rod insertion 0..1
+                    // TODO: race condition with computer craft is possible here
+                    final double controlRodInsertion = controlRodsXZ[currentX][currentZ].insertion * .001;
+                    final double halfRodInsertion = controlRodInsertion * 0.5;
+                    // Full insertion doubles the moderation factor of the fuel as well as adding its own level
+                    final double fuelModerationFactor = FuelModerationFactor + (FuelModerationFactor * controlRodInsertion + controlRodInsertion);
+                    final double hardnessMultiplier = 1.0 / (((fuelModerationFactor - 1.0) * stepLength) + 1.0);
+                    final double stepFuelAbsorptionCoefficient = FuelAbsorptionCoefficient * stepLength;
+                    
+                    if (vectorizedColumns != null) {
+                        remainingIntensity = vectorizedColumns.fuelColumn(intensities, hardnesses, kStart, kEnd, fuelAbsorptionTemperatureCoefficient, fuelHardnessMultiplier, stepFuelAbsorptionCoefficient, halfRodInsertion, hardnessMultiplier);
+                    } else {
+                        for (int k = kStart; k < kEnd; k++) {
                             final double neutronIntensity = intensities[k];
                             final double neutronHardness = hardnesses[k];
                             // Fuel absorptiveness is determined by control rod + a heat modifier.
@@ -316,82 +822,353 @@ public class FullPassReactorSimulation extends BaseReactorSimulation {
                             final double radiationAbsorbed = (scaledAbsorption + controlRodBonus) * neutronIntensity;
                             final double fertilityAbsorbed = (scaledAbsorption - controlRodPenalty) * neutronIntensity;
                             
-                            intensities[k] = Math.max(0, neutronIntensity - (radiationAbsorbed));
+                            final double newIntensity = Math.max(0, neutronIntensity - (radiationAbsorbed));
+                            intensities[k] = newIntensity;
                             hardnesses[k] = neutronHardness * hardnessMultiplier;
                             // Being irradiated both heats up the fuel and also enhances its fertility
                             fuelRFAdded += radiationAbsorbed;
                             fuelRadAdded += fertilityAbsorbed;
+                            remainingIntensity += newIntensity;
                         }
                     }
                 }
+                if (remainingIntensity < terminationIntensity) {
+                    // dropping the rest of the ray loses less than the error budget
+                    break;
+                }
+            }
+        }
+        if (vectorizedColumns != null) {
+            fuelRFAdded += vectorizedColumns.fuelRFAdded;
+            fuelRadAdded += vectorizedColumns.fuelRadAdded;
+            caseRFAdded += vectorizedColumns.caseRFAdded;
+            vectorizedColumns.fuelRFAdded = 0;
+            vectorizedColumns.fuelRadAdded = 0;
+            vectorizedColumns.caseRFAdded = 0;
+        }
+        request.fuelRFAdded = fuelRFAdded;
+        request.fuelRadAdded = fuelRadAdded;
+        request.caseRFAdded = caseRFAdded;
+    }
+    
+    /**
+     * @return 0 for block by block, otherwise the coarse grid level for a step this far along its ray
+     */
+    static int coarseLevel(double distance, double coarseRayDistance) {
+        int level = 0;
+        while (level < CoarseModeratorGrid.MAX_LEVEL && distance >= coarseRayDistance * (1 << level)) {
+            level++;
+        }
+        return level;
+    }
+    
+    /**
+     * traces every rod both block by block and with coarse grids, with the current tick's parameters and insertions
+     * too slow for debugString, this is for checking coarse tracing against the exact trace off the server thread
+     *
+     * @return the relative error of the coarse FuelRF, FuelRad, and CaseRF totals, null if coarse tracing is off or nothing has been traced yet
+     */
+    @Nullable
+    public double[] coarseRayErrors() {
+        if (coarseGrids == null || rayMultiplier == 0) {
+            return null;
+        }
+        final var caches = moderatorCaches.toArray(new ModeratorCache[0]);
+        final var exactRequest = new IrradiationRequest(caches, y, false, null);
+        final var coarseRequest = new IrradiationRequest(caches, y, false, coarseProperties);
+        exactRequest.updateCache();
+        coarseRequest.updateCache();
+        final double[] exact = new double[3];
+        final double[] coarse = new double[3];
+        for (int i = 0; i < controlRods.length; i++) {
+            traceRays(exactRequest, i, 0, rayProgram.rayCount);
+            traceRays(coarseRequest, i, 0, rayProgram.rayCount);
+            exact[0] += exactRequest.fuelRFAdded * initialIntensties[i];
+            exact[1] += exactRequest.fuelRadAdded * initialIntensties[i];
+            exact[2] += exactRequest.caseRFAdded * initialIntensties[i];
+            coarse[0] += coarseRequest.fuelRFAdded * initialIntensties[i];
+            coarse[1] += coarseRequest.fuelRadAdded * initialIntensties[i];
+            coarse[2] += coarseRequest.caseRFAdded * initialIntensties[i];
+        }
+        final double[] errors = new double[3];
+        for (int i = 0; i < errors.length; i++) {
+            errors[i] = exact[i] != 0 ? (coarse[i] - exact[i]) / exact[i] : 0;
+        }
+        return errors;
+    }
+    
+    /**
+     * @return coarseRayErrors as debug lines, empty if there are none
+     */
+    public String coarseRayReport() {
+        final double[] errors = coarseRayErrors();
+        if (errors == null) {
+            return "";
+        }
+        final String[] names = {"FuelRF", "FuelRad", "CaseRF"};
+        final var report = new StringBuilder();
+        for (int i = 0; i < names.length; i++) {
+            report.append("CoarseRayError").append(names[i]).append(": ").append(String.format("%.4f%%", errors[i] * 100)).append("\n");
+        }
+        return report.toString();
+    }
+    
+    protected int getModeratorIndex(int moderatorIndexIndex) {
+        return moderatorIndices.get(moderatorIndexIndex);
+    }
+    
+    @Override
+    public void release() {
+        if (!released) {
+            released = true;
+            moderatorIndices.release();
+        }
+    }
+    
+    @Override
+    public long footprintBytes(Reference2LongMap<Object> shared) {
+        long bytes = super.footprintBytes(shared) + initialIntensties.length * 8L;
+        shared.put(moderatorIndices, moderatorIndices.footprintBytes());
+        shared.put(columnModerators, columnModerators.length * 2L);
+        for (IrradiationResponseCache cache : irradiationResponseCaches) {
+            if (cache != null) {
+                bytes += cache.footprintBytes(shared);
+            }
+        }
+        if (temperatureResponseTables != null) {
+            for (TemperatureResponseTable table : temperatureResponseTables) {
+                if (table != null) {
+                    bytes += table.footprintBytes(shared);
+                }
+            }
+        }
+        if (coarseGrids != null) {
+            for (CoarseModeratorGrid grid : coarseGrids) {
+                shared.put(grid, grid.footprintBytes());
+                bytes += grid.compositionCount() * 24L;
             }
         }
-        request.result.fuelRFAdded = fuelRFAdded;
-        request.result.fuelRadAdded = fuelRadAdded;
-        request.result.caseRFAdded = caseRFAdded;
+        return bytes;
     }
     
-    protected byte getModeratorIndex(int moderatorIndexIndex) {
-        return moderatorIndices[moderatorIndexIndex];
+    @Override
+    public String debugString() {
+        final String irradiationTraces;
+        if (temperatureResponseTable != null) {
+            irradiationTraces = "IrradiationTraces: " + temperatureResponseTable.lastTraceCount() + "/" + controlRods.length * 2 + "\n" +
+                                "TemperatureResponseSamples: " + temperatureResponseTable.sampleCount() + "\n";
+        } else {
+            irradiationTraces = "IrradiationTraces: " + irradiationResponseCache.lastTraceCount() + "/" + controlRods.length + "\n";
+        }
+        return "SimulationFidelity: " + SimulationFidelity.describe(fidelityLevel) + "\n" +
+                       irradiationTraces +
+                       "IrradiationStructuralClasses: " + irradiationResponseCache.structuralClassCount() + "\n" +
+                       SimulationFidelity.debugString();
     }
     
     public static class MultiThreaded extends FullPassReactorSimulation {
         
+        protected final boolean singleThread;
+        // estimated cost (Y levels stepped through) of tracing each rod, rays of edge rods leave the reactor early
+        protected final int[] traceCosts;
+        // running total of traceCosts over the trace list, rebuilt every tick
+        protected final long[] traceCostPrefix;
+        // tasks are split in half until they cost less than this
+        protected long leafTraceCost;
+        // scratch space for tasks, one per task running at once
+        protected final ArrayBlockingQueue<IrradiationRequest> irradiationRequests;
+        protected final ModeratorCache[] cacheArray;
         @Nullable
-        protected final Runnable[] irradiationRequestRunnables;
-        @Nullable
-        protected final IrradiationRequest[] irradiationRequests;
-        @Nullable
-        protected final Event[] irradiationRequestEvents;
-        @Nullable
-        private Event doneEvent;
-        private final Runnable mainRunnable = () -> runIrradiationRequest(fullPassIrradiationRequest);
+        private ForkJoinTask<?> irradiationTask;
+        private boolean irradiationStarted = false;
+        // waiting on ReactorSimulationScheduler to dispatch or defer it
+        private boolean irradiationScheduled = false;
+        // ticks in a row the scheduler pushed this reactor back
+        int deferredTicks = 0;
         
         public MultiThreaded(SimulationDescription simulationDescription, boolean singleThread) {
-            super(simulationDescription);
+            this(simulationDescription, singleThread, false);
+        }
+        
+        public MultiThreaded(SimulationDescription simulationDescription, boolean singleThread, boolean vectorized) {
+            super(simulationDescription, vectorized);
             
-            if (!singleThread) {
-                final var cacheArray = this.moderatorCaches.toArray(new ModeratorCache[0]);
-                final int batchSize = Config.CONFIG.Reactor.ModeSpecific.ControlRodBatchSize;
-                final int batches = controlRods.length / batchSize + ((controlRods.length % batchSize == 0) ? 0 : 1);
-                irradiationRequestRunnables = new Runnable[batches];
-                irradiationRequests = new IrradiationRequest[batches];
-                irradiationRequestEvents = new Event[batches];
-                for (int i = 0; i < batches; i++) {
-                    int baseRod = i * batchSize;
-                    int rodCount = Math.min(batchSize, controlRods.length - baseRod);
-                    final var request = new IrradiationRequest(baseRod, rodCount, cacheArray, y);
-                    irradiationRequestRunnables[i] = () -> runIrradiationRequest(request);
-                    irradiationRequests[i] = request;
-                }
+            this.singleThread = singleThread;
+            cacheArray = this.moderatorCaches.toArray(new ModeratorCache[0]);
+            traceCosts = new int[controlRods.length];
+            traceCostPrefix = new long[traceList.length + 1];
+            updateTraceCosts();
+            irradiationRequests = new ArrayBlockingQueue<>(ReactorSimulationPool.pool().getParallelism() + 1);
+        }
+        
+        private void updateTraceCosts() {
+            long totalTraceCost = 0;
+            for (int i = 0; i < controlRods.length; i++) {
+                traceCosts[i] = traceCost(controlRods[i].x, controlRods[i].z);
+                totalTraceCost += traceCosts[i];
+            }
+            if (singleThread) {
+                leafTraceCost = Long.MAX_VALUE;
             } else {
-                irradiationRequestRunnables = null;
-                irradiationRequests = null;
-                irradiationRequestEvents = null;
+                leafTraceCost = Math.max(1, Config.CONFIG.Reactor.ModeSpecific.ControlRodBatchSize * totalTraceCost / controlRods.length);
             }
         }
         
         @Override
-        protected double radiate() {
-            if (irradiationRequests != null && irradiationRequestEvents != null && irradiationRequestRunnables != null) {
-                for (int i = 0; i < irradiationRequests.length; i++) {
-                    final var event = irradiationRequestEvents[i];
-                    if (event != null) {
-                        event.join();
-                        irradiationRequestEvents[i] = null;
-                        collectIrradiationResult(irradiationRequests[i].result);
+        protected void onRayProgramChanged() {
+            updateTraceCosts();
+        }
+        
+        private int traceCost(int rodX, int rodZ) {
+            final int[] rayStarts = rayProgram.rayStarts;
+            final int[] steps = rayProgram.steps;
+            int cost = 0;
+            for (int i = 0; i < rayProgram.rayCount; i++) {
+                for (int j = rayStarts[i]; j < rayStarts[i + 1]; j++) {
+                    final int stepIndex = j * RayProgram.STEP_STRIDE;
+                    final int currentX = rodX + steps[stepIndex + RayProgram.STEP_X];
+                    final int currentZ = rodZ + steps[stepIndex + RayProgram.STEP_Z];
+                    if (currentX < 0 || currentX >= x || currentZ < 0 || currentZ >= z) {
+                        break;
                     }
+                    cost += steps[stepIndex + RayProgram.STEP_K_END] - steps[stepIndex + RayProgram.STEP_K_START];
                 }
-            } else {
-                if (doneEvent != null) {
-                    doneEvent.join();
-                    doneEvent = null;
-                    collectIrradiationResult(fullPassIrradiationRequest.result);
+            }
+            return cost;
+        }
+        
+        private void runTraces(int traceStart, int traceEnd) {
+            var request = irradiationRequests.poll();
+            if (request == null) {
+                request = new IrradiationRequest(cacheArray, y, vectorized, coarseProperties);
+                request.updateCache();
+            }
+            final long startTime = System.nanoTime();
+            runIrradiationRequest(request, traceStart, traceEnd);
+            ReactorSimulationScheduler.recordWork(System.nanoTime() - startTime, traceCostPrefix[traceEnd] - traceCostPrefix[traceStart]);
+            // if its full, this is a spare from a burst of compensation threads, and can be dropped
+            irradiationRequests.offer(request);
+        }
+        
+        private class IrradiationTask extends RecursiveAction {
+            private final int traceStart;
+            private final int traceEnd;
+            
+            private IrradiationTask(int traceStart, int traceEnd) {
+                this.traceStart = traceStart;
+                this.traceEnd = traceEnd;
+            }
+            
+            @Override
+            protected void compute() {
+                final long startCost = traceCostPrefix[traceStart];
+                final long endCost = traceCostPrefix[traceEnd];
+                if (traceEnd - traceStart <= 1 || endCost - startCost <= leafTraceCost) {
+                    runTraces(traceStart, traceEnd);
+                    return;
                 }
+                // split at half the cost, not half the rods
+                int split = Arrays.binarySearch(traceCostPrefix, traceStart + 1, traceEnd, startCost + (endCost - startCost) / 2);
+                if (split < 0) {
+                    split = Math.min(traceEnd - 1, -split - 1);
+                }
+                final var upper = new IrradiationTask(split, traceEnd);
+                upper.fork();
+                new IrradiationTask(traceStart, split).compute();
+                upper.join();
             }
+        }
+        
+        @Override
+        protected double radiate() {
+            finishIrradiation();
             return realizeIrradiationTick();
         }
         
+        private void finishIrradiation() {
+            if (irradiationScheduled) {
+                // the tick never ended, simulated outside a running server
+                ReactorSimulationScheduler.dispatchNow(this);
+            }
+            if (irradiationTask != null) {
+                irradiationTask.join();
+                irradiationTask = null;
+            }
+            if (irradiationStarted) {
+                irradiationStarted = false;
+                collectIrradiationResponses();
+            }
+        }
+        
+        @Override
+        public boolean updateLayout(SimulationDescription simulationDescription, IntList changedBlocks) {
+            // tasks in flight read the layout, and their responses go into the caches being replaced
+            finishIrradiation();
+            if (!super.updateLayout(simulationDescription, changedBlocks)) {
+                return false;
+            }
+            // they hold onto the old coarse properties, new ones are made as needed
+            irradiationRequests.clear();
+            return true;
+        }
+        
+        @Override
+        public void load(@Nonnull PhosphophylliteCompound compound) {
+            clearIrradiation();
+            super.load(compound);
+        }
+        
+        @Override
+        public void loadState(byte[] state) {
+            clearIrradiation();
+            super.loadState(state);
+        }
+        
+        /**
+         * a simulation picked back up from SimulationCache starts like a new one, not with the irradiation of whatever it last simulated
+         */
+        private void clearIrradiation() {
+            cancelBackgroundWork();
+            rawFuelUsage = 0;
+            fuelRFAdded = 0;
+            fuelRadAdded = 0;
+            caseRFAdded = 0;
+        }
+        
+        @Override
+        public void cancelBackgroundWork() {
+            cancelIrradiation();
+            if (irradiationStarted) {
+                irradiationStarted = false;
+                // traced parameters were already updated for responses that never got collected
+                irradiationResponseCache.invalidateAll();
+                if (temperatureResponseTable != null) {
+                    temperatureResponseTable.invalidateAll();
+                }
+            }
+        }
+        
+        /**
+         * drops this tick's traces if they are still waiting on the scheduler, and waits for them if they are already running
+         */
+        private void cancelIrradiation() {
+            if (irradiationScheduled) {
+                irradiationScheduled = false;
+                ReactorSimulationScheduler.unschedule(this);
+            }
+            if (irradiationTask != null) {
+                irradiationTask.join();
+                irradiationTask = null;
+            }
+        }
+        
+        @Override
+        public void release() {
+            // running traces read the native layout
+            cancelIrradiation();
+            super.release();
+        }
+        
         @Override
         protected void startNextRadiate() {
             if (fuelTank.fuel() <= 0) {
@@ -399,14 +1176,71 @@ public class FullPassReactorSimulation extends BaseReactorSimulation {
             }
             
             setupIrradiationTick();
-            if (irradiationRequests != null && irradiationRequestEvents != null && irradiationRequestRunnables != null) {
-                for (int i = 0; i < irradiationRequests.length; i++) {
-                    irradiationRequests[i].updateCache();
-                    irradiationRequestEvents[i] = Queues.offThread.enqueue(irradiationRequestRunnables[i]);
-                }
+            prepareIrradiationTraces();
+            irradiationStarted = true;
+            if (traceCount == 0) {
+                // steady state, nothing to submit
+                return;
+            }
+            for (int i = 0; i < traceCount; i++) {
+                // trace list entries past the rod count are the second temperature sample of the same rod
+                traceCostPrefix[i + 1] = traceCostPrefix[i] + traceCosts[traceList[i] % controlRods.length];
+            }
+            // previous tick's tasks are all joined, so nothing else is touching these
+            for (var request : irradiationRequests) {
+                request.updateCache();
+            }
+            irradiationScheduled = true;
+            ReactorSimulationScheduler.schedule(this);
+        }
+        
+        long pendingIrradiationCost() {
+            return traceCostPrefix[traceCount];
+        }
+        
+        boolean hasIrradiationResponses() {
+            if (temperatureResponseTable != null) {
+                return temperatureResponseTable.hasResponses();
+            }
+            return irradiationResponseCache.hasResponses();
+        }
+        
+        void dispatchIrradiation() {
+            if (!irradiationScheduled) {
+                return;
+            }
+            irradiationScheduled = false;
+            deferredTicks = 0;
+            irradiationTask = ReactorSimulationPool.pool().submit(new IrradiationTask(0, traceCount));
+        }
+        
+        /**
+         * if this tick's traces would run as a single task anyway, and can go into a batch with other reactors instead
+         */
+        boolean batchable() {
+            return pendingIrradiationCost() <= leafTraceCost;
+        }
+        
+        /**
+         * @return this tick's traces as a task of their own, for a batch to invoke, this reactor joins it like any other
+         */
+        ForkJoinTask<?> dispatchBatchedIrradiation() {
+            irradiationScheduled = false;
+            deferredTicks = 0;
+            irradiationTask = new IrradiationTask(0, traceCount);
+            return irradiationTask;
+        }
+        
+        void deferIrradiation() {
+            if (!irradiationScheduled) {
+                return;
+            }
+            irradiationScheduled = false;
+            deferredTicks++;
+            if (temperatureResponseTable != null) {
+                temperatureResponseTable.deferTraces();
             } else {
-                fullPassIrradiationRequest.updateCache();
-                doneEvent = Queues.offThread.enqueue(mainRunnable);
+                irradiationResponseCache.deferTraces();
             }
         }
         
@@ -414,5 +1248,13 @@ public class FullPassReactorSimulation extends BaseReactorSimulation {
         public boolean isAsync() {
             return true;
         }
+        
+        @Override
+        public String debugString() {
+            return super.debugString() +
+                           "IrradiationDeferredTicks: " + deferredTicks + "\n" +
+                           ReactorSimulationPool.debugString() +
+                           ReactorSimulationScheduler.debugString();
+        }
     }
 }
@@ -0,0 +1,712 @@
+package net.roguelogix.biggerreactors.multiblocks.reactor.simulation.cpu;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.Reference2LongMap;
+import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.base.ModeratorCache;
+import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.base.RayProgram;
+import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.base.ReactorSymmetry;
+import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.base.SharedStructures;
+import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.base.SimUtil;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+
+/**
+ * Per control rod irradiation results, normalized to a unit initial intensity
+ * <p>
+ * Everything a ray trace adds up scales linearly with the intensity it starts with, so as long as the hardness, the fuel absorption
+ * coefficient, the moderators, and the control rod insertions the rays pass through stay put, the last trace can just be rescaled
+ * Each rod remembers the hardness and fuel absorption coefficient it was traced at, and is retraced once either drifts past the tolerance,
+ * as a fraction of the current value, so no rod's response is ever further off than that, however long ago it was traced
+ * <p>
+ * Rods that see the exact same columns along every ray step (regular lattices, away from the edges) are grouped into structural classes,
+ * dirty rods of the same class with the same insertions along the way only get traced once
+ * With coarse rays, the far steps read whole cells on the 2^level grid, so rods also need to sit at the same place in their cells, and see the same cell columns along those steps
+ * <p>
+ * Optionally, for layouts with mirror or rotational symmetry, only one rod of each symmetric orbit is traced while the insertions are symmetric too
+ * this is approximate, the simulation rays themselves aren't symmetric
+ */
+public class IrradiationResponseCache {
+    
+    public final double[] fuelRFAdded;
+    public final double[] fuelRadAdded;
+    public final double[] caseRFAdded;
+    private final boolean[] dirty;
+    // the rod whose trace a dirty rod takes its response from this tick, itself if its traced
+    private final int[] leaders;
+    
+    private final SimUtil.ControlRod[] controlRods;
+    private final Structure structure;
+    // rods whose rays pass through the column of rod i, including rod i itself
+    private final int[][] dependents;
+    // bitmask of the moderator indices rod i's rays pass through, maskWords longs per rod
+    private final long[] moderatorMasks;
+    private final int maskWords;
+    // scratch bitmask of the moderators that changed since the last invalidate
+    private final long[] changedModerators;
+    // rods of the same structural class trace identically, given identical insertions for themselves and their visited rods
+    private final int[] structuralClasses;
+    // other rods rod i's rays pass through, in the order they are first hit
+    private final int[][] visitedRods;
+    private final Int2ObjectOpenHashMap<IntArrayList> leadersByHash = new Int2ObjectOpenHashMap<>();
+    private final int structuralClassCount;
+    
+    private final double[] tracedInsertions;
+    private final double[] tracedModerators;
+    // per rod, what it was last traced at
+    private final double[] tracedInitialHardnesses;
+    private final double[] tracedFuelAbsorptionTemperatureCoefficients;
+    // what rods traced this tick are traced at, from the last invalidate
+    private double initialHardness = Double.NaN;
+    private double fuelAbsorptionTemperatureCoefficient = Double.NaN;
+    private double tracedFuelAbsorptionCoefficient = Double.NaN;
+    private double tracedFuelModerationFactor = Double.NaN;
+    private double tracedFuelHardnessMultiplier = Double.NaN;
+    
+    @Nullable
+    private final ReactorSymmetry symmetry;
+    // rod at the image of rod i under each layout transform, null for transforms the layout doesnt have
+    private final int[][] symmetricRods;
+    // transforms that currently hold for the control rod insertions too
+    private int activeTransforms = 1 << ReactorSymmetry.IDENTITY;
+    // lowest index rod of the orbit of rod i under the active transforms
+    private final int[] symmetryRepresentatives;
+    // representative a dirty rod takes its response from this tick, -1 if it doesnt
+    private final int[] symmetricLeaders;
+    private boolean insertionsChanged = true;
+    
+    private int lastDirtyCount = 0;
+    private int lastTraceCount = 0;
+    private boolean hasResponses = false;
+    // where a limited trace list starts
+    private int traceCursor = 0;
+    
+    /**
+     * @param coarseGrids null if rays are traced block by block all the way, otherwise they are from coarseRayDistance on
+     */
+    public IrradiationResponseCache(SimUtil.ControlRod[] controlRods, RayProgram rayProgram, ModeratorIndices moderatorIndices, int moderatorCount, @Nullable CoarseModeratorGrid[] coarseGrids, double coarseRayDistance, @Nullable ReactorSymmetry symmetry, int x, int y, int z) {
+        this.controlRods = controlRods;
+        fuelRFAdded = new double[controlRods.length];
+        fuelRadAdded = new double[controlRods.length];
+        caseRFAdded = new double[controlRods.length];
+        dirty = new boolean[controlRods.length];
+        Arrays.fill(dirty, true);
+        leaders = new int[controlRods.length];
+        symmetricLeaders = new int[controlRods.length];
+        Arrays.fill(symmetricLeaders, -1);
+        symmetryRepresentatives = new int[controlRods.length];
+        for (int i = 0; i < controlRods.length; i++) {
+            symmetryRepresentatives[i] = i;
+        }
+        tracedInsertions = new double[controlRods.length];
+        tracedInitialHardnesses = new double[controlRods.length];
+        Arrays.fill(tracedInitialHardnesses, Double.NaN);
+        tracedFuelAbsorptionTemperatureCoefficients = new double[controlRods.length];
+        Arrays.fill(tracedFuelAbsorptionTemperatureCoefficients, Double.NaN);
+        tracedModerators = new double[moderatorCount * 3];
+        Arrays.fill(tracedModerators, Double.NaN);
+        maskWords = (moderatorCount + 63) >> 6;
+        changedModerators = new long[maskWords];
+        
+        this.symmetry = symmetry != null && symmetry.isSymmetric() ? symmetry : null;
+        
+        final var structure = Structure.shared(controlRods, rayProgram, moderatorIndices, maskWords, coarseGrids, coarseRayDistance, this.symmetry, x, y, z);
+        this.structure = structure;
+        dependents = structure.dependents;
+        moderatorMasks = structure.moderatorMasks;
+        structuralClasses = structure.structuralClasses;
+        visitedRods = structure.visitedRods;
+        structuralClassCount = structure.structuralClassCount;
+        symmetricRods = structure.symmetricRods;
+    }
+    
+    /**
+     * Everything about the rods that only depends on the layout and ray program, identical reactors share one through SharedStructures
+     */
+    private static final class Structure {
+        // what it was built from, moderatorIndices and the ray program are shared themselves so they are compared by identity
+        private final ModeratorIndices moderatorIndices;
+        private final int maskWords;
+        private final RayProgram rayProgram;
+        // the coarse grids are shared for the moderatorIndices, so only whether they are used and from where needs comparing
+        private final double coarseRayDistance;
+        private final int layoutTransforms;
+        private final int x, z;
+        
+        private final int[][] dependents;
+        private final long[] moderatorMasks;
+        private final int[] structuralClasses;
+        private final int[][] visitedRods;
+        private final int structuralClassCount;
+        private final int[][] symmetricRods;
+        
+        private static Structure shared(SimUtil.ControlRod[] controlRods, RayProgram rayProgram, ModeratorIndices moderatorIndices, int maskWords, @Nullable CoarseModeratorGrid[] coarseGrids, double coarseRayDistance, @Nullable ReactorSymmetry symmetry, int x, int y, int z) {
+            final int layoutTransforms = symmetry == null ? 0 : symmetry.layoutTransforms;
+            final double structureCoarseRayDistance = coarseGrids == null ? 0 : coarseRayDistance;
+            long hash = System.identityHashCode(moderatorIndices);
+            hash = hash * 31 + System.identityHashCode(rayProgram);
+            hash = hash * 31 + maskWords;
+            hash = hash * 31 + Double.hashCode(structureCoarseRayDistance);
+            hash = hash * 31 + layoutTransforms;
+            hash = hash * 31 + x;
+            hash = hash * 31 + z;
+            return SharedStructures.intern(hash, Structure.class,
+                    structure -> structure.moderatorIndices == moderatorIndices && structure.maskWords == maskWords && structure.rayProgram == rayProgram && structure.coarseRayDistance == structureCoarseRayDistance && structure.layoutTransforms == layoutTransforms && structure.x == x && structure.z == z,
+                    () -> new Structure(controlRods, rayProgram, moderatorIndices, maskWords, coarseGrids, structureCoarseRayDistance, symmetry, x, y, z));
+        }
+        
+        private Structure(SimUtil.ControlRod[] controlRods, RayProgram rayProgram, ModeratorIndices moderatorIndices, int maskWords, @Nullable CoarseModeratorGrid[] coarseGrids, double coarseRayDistance, @Nullable ReactorSymmetry symmetry, int x, int y, int z) {
+            this.moderatorIndices = moderatorIndices;
+            this.maskWords = maskWords;
+            this.rayProgram = rayProgram;
+            this.coarseRayDistance = coarseRayDistance;
+            this.layoutTransforms = symmetry == null ? 0 : symmetry.layoutTransforms;
+            this.x = x;
+            this.z = z;
+            
+            final int[][] rodIndicesXZ = new int[x][z];
+            for (int i = 0; i < controlRods.length; i++) {
+                rodIndicesXZ[controlRods[i].x][controlRods[i].z] = i + 1;
+            }
+            
+            // moderators present in each column, so the per rod masks dont need to walk every Y level
+            final long[] columnMasks = new long[x * z * maskWords];
+            // identical columns share a class, fuel rod columns are all moderator index 0
+            final int[] columnClasses = new int[x * z];
+            final Object2IntOpenHashMap<Object> columnClassMap = new Object2IntOpenHashMap<>();
+            for (int i = 0; i < x; i++) {
+                for (int j = 0; j < z; j++) {
+                    final int column = (i * z) + j;
+                    final int columnStart = column * y;
+                    columnClasses[column] = columnClassMap.computeIfAbsent(moderatorIndices.columnKey(columnStart, y), key -> columnClassMap.size());
+                    for (int k = 0; k < y; k++) {
+                        final int moderatorIndex = moderatorIndices.get(columnStart + k);
+                        columnMasks[column * maskWords + (moderatorIndex >> 6)] |= 1L << (moderatorIndex & 63);
+                    }
+                }
+            }
+            
+            // coarse grid level of every step, all 0 without coarse rays
+            final int[] stepLevels = new int[rayProgram.distances.length];
+            if (coarseGrids != null) {
+                for (int i = 0; i < stepLevels.length; i++) {
+                    stepLevels[i] = FullPassReactorSimulation.coarseLevel(rayProgram.distances[i], coarseRayDistance);
+                }
+            }
+            
+            final IntArrayList[] dependentLists = new IntArrayList[controlRods.length];
+            final IntArrayList visitedList = new IntArrayList();
+            visitedRods = new int[controlRods.length][];
+            for (int i = 0; i < controlRods.length; i++) {
+                dependentLists[i] = new IntArrayList();
+            }
+            moderatorMasks = new long[controlRods.length * maskWords];
+            final int[] lastSeenBy = new int[controlRods.length];
+            Arrays.fill(lastSeenBy, -1);
+            final int[] steps = rayProgram.steps;
+            final int[] rayStarts = rayProgram.rayStarts;
+            for (int i = 0; i < controlRods.length; i++) {
+                final var controlRod = controlRods[i];
+                // vertical rays can come back through the rods own column, so it always depends on itself
+                lastSeenBy[i] = i;
+                dependentLists[i].add(i);
+                visitedList.clear();
+                for (int j = 0; j < rayProgram.rayCount; j++) {
+                    for (int k = rayStarts[j]; k < rayStarts[j + 1]; k++) {
+                        final int stepIndex = k * RayProgram.STEP_STRIDE;
+                        final int currentX = controlRod.x + steps[stepIndex + RayProgram.STEP_X];
+                        final int currentZ = controlRod.z + steps[stepIndex + RayProgram.STEP_Z];
+                        if (currentX < 0 || currentX >= x || currentZ < 0 || currentZ >= z) {
+                            break;
+                        }
+                        final int rodIndex = rodIndicesXZ[currentX][currentZ] - 1;
+                        if (rodIndex >= 0) {
+                            if (lastSeenBy[rodIndex] != i) {
+                                lastSeenBy[rodIndex] = i;
+                                dependentLists[rodIndex].add(i);
+                                visitedList.add(rodIndex);
+                            }
+                        } else if (stepLevels[k] == 0) {
+                            orColumnMask(moderatorMasks, i, columnMasks, (currentX * z) + currentZ, maskWords);
+                        } else {
+                            // a coarse step takes the average of its whole cell, not just the column it goes through
+                            final int level = stepLevels[k];
+                            final int cellX = (currentX >> level) << level;
+                            final int cellZ = (currentZ >> level) << level;
+                            for (int cellI = cellX; cellI < Math.min(x, cellX + (1 << level)); cellI++) {
+                                for (int cellJ = cellZ; cellJ < Math.min(z, cellZ + (1 << level)); cellJ++) {
+                                    orColumnMask(moderatorMasks, i, columnMasks, (cellI * z) + cellJ, maskWords);
+                                }
+                            }
+                        }
+                    }
+                }
+                visitedRods[i] = visitedList.toIntArray();
+            }
+            dependents = new int[controlRods.length][];
+            for (int i = 0; i < controlRods.length; i++) {
+                dependents[i] = dependentLists[i].toIntArray();
+            }
+            
+            structuralClasses = new int[controlRods.length];
+            final Long2ObjectOpenHashMap<IntArrayList> classRepresentatives = new Long2ObjectOpenHashMap<>();
+            final IntArrayList representativeClasses = new IntArrayList();
+            int structuralClassCount = 0;
+            for (int i = 0; i < controlRods.length; i++) {
+                final long hash = structureHash(controlRods[i], rayProgram, columnClasses, coarseGrids, stepLevels, x, z);
+                final var representatives = classRepresentatives.computeIfAbsent(hash, key -> new IntArrayList());
+                int structuralClass = -1;
+                for (int j = 0; j < representatives.size(); j++) {
+                    final int representative = representatives.getInt(j);
+                    if (sameStructure(controlRods[i], controlRods[representative], rayProgram, columnClasses, coarseGrids, stepLevels, x, z)) {
+                        structuralClass = structuralClasses[representative];
+                        break;
+                    }
+                }
+                if (structuralClass == -1) {
+                    structuralClass = structuralClassCount++;
+                    representatives.add(i);
+                }
+                structuralClasses[i] = structuralClass;
+            }
+            this.structuralClassCount = structuralClassCount;
+            
+            symmetricRods = new int[ReactorSymmetry.TRANSFORM_COUNT][];
+            if (symmetry != null) {
+                for (int transform = 0; transform < ReactorSymmetry.TRANSFORM_COUNT; transform++) {
+                    if ((symmetry.layoutTransforms & (1 << transform)) == 0) {
+                        continue;
+                    }
+                    final int[] images = new int[controlRods.length];
+                    for (int i = 0; i < controlRods.length; i++) {
+                        final var controlRod = controlRods[i];
+                        // layout symmetry includes the control rod positions, so this is always a rod
+                        images[i] = rodIndicesXZ[symmetry.transformX(transform, controlRod.x, controlRod.z)][symmetry.transformZ(transform, controlRod.x, controlRod.z)] - 1;
+                    }
+                    symmetricRods[transform] = images;
+                }
+            }
+        }
+        
+        private long footprintBytes() {
+            // per rod its mask, its structural class, and the headers of its two jagged arrays
+            long bytes = dependents.length * (maskWords * 8L + 4 + 2L * 24);
+            for (int i = 0; i < dependents.length; i++) {
+                bytes += (dependents[i].length + visitedRods[i].length) * 4L;
+            }
+            for (int[] images : symmetricRods) {
+                if (images != null) {
+                    bytes += images.length * 4L;
+                }
+            }
+            return bytes;
+        }
+    }
+    
+    private static void orColumnMask(long[] moderatorMasks, int rod, long[] columnMasks, int column, int maskWords) {
+        for (int word = 0; word < maskWords; word++) {
+            moderatorMasks[rod * maskWords + word] |= columnMasks[column * maskWords + word];
+        }
+    }
+    
+    // step class of every step, -1 where a ray leaves the reactor, and where the rod sits in the largest coarse cells
+    private static long structureHash(SimUtil.ControlRod controlRod, RayProgram rayProgram, int[] columnClasses, @Nullable CoarseModeratorGrid[] coarseGrids, int[] stepLevels, int x, int z) {
+        long hash = 0;
+        if (coarseGrids != null) {
+            final int cellMask = (1 << coarseGrids.length) - 1;
+            hash = ((long) (controlRod.x & cellMask) << 16) | (controlRod.z & cellMask);
+        }
+        for (int i = 0; i < rayProgram.rayCount; i++) {
+            for (int j = rayProgram.rayStarts[i]; j < rayProgram.rayStarts[i + 1]; j++) {
+                final long stepClass = stepClass(controlRod, rayProgram, j, columnClasses, coarseGrids, stepLevels, x, z);
+                hash = hash * 0x9E3779B97F4A7C15L + stepClass;
+                if (stepClass == -1) {
+                    break;
+                }
+            }
+        }
+        return hash;
+    }
+    
+    private static boolean sameStructure(SimUtil.ControlRod a, SimUtil.ControlRod b, RayProgram rayProgram, int[] columnClasses, @Nullable CoarseModeratorGrid[] coarseGrids, int[] stepLevels, int x, int z) {
+        if (coarseGrids != null) {
+            // coarse runs end at cell borders, rods at different places in their cells would split them differently
+            final int cellMask = (1 << coarseGrids.length) - 1;
+            if (((a.x ^ b.x) & cellMask) != 0 || ((a.z ^ b.z) & cellMask) != 0) {
+                return false;
+            }
+        }
+        for (int i = 0; i < rayProgram.rayCount; i++) {
+            for (int j = rayProgram.rayStarts[i]; j < rayProgram.rayStarts[i + 1]; j++) {
+                final long stepClassA = stepClass(a, rayProgram, j, columnClasses, coarseGrids, stepLevels, x, z);
+                final long stepClassB = stepClass(b, rayProgram, j, columnClasses, coarseGrids, stepLevels, x, z);
+                if (stepClassA != stepClassB) {
+                    return false;
+                }
+                if (stepClassA == -1) {
+                    break;
+                }
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * @return the column class of the step, plus the class of the cell column it is in for coarse steps, -1 if it is outside the reactor
+     */
+    private static long stepClass(SimUtil.ControlRod controlRod, RayProgram rayProgram, int step, int[] columnClasses, @Nullable CoarseModeratorGrid[] coarseGrids, int[] stepLevels, int x, int z) {
+        final int column = stepColumn(controlRod, rayProgram, step, x, z);
+        if (column == -1) {
+            return -1;
+        }
+        final int level = stepLevels[step];
+        if (level == 0) {
+            return columnClasses[column];
+        }
+        assert coarseGrids != null;
+        final var coarseGrid = coarseGrids[level - 1];
+        final int cellX = (column / z) >> level;
+        final int cellZ = (column % z) >> level;
+        final int cellColumnClass = coarseGrid.cellColumnClasses[(cellX * coarseGrid.cellsZ) + cellZ];
+        return ((long) (cellColumnClass + 1) << 32) | columnClasses[column];
+    }
+    
+    private static int stepColumn(SimUtil.ControlRod controlRod, RayProgram rayProgram, int step, int x, int z) {
+        final int stepIndex = step * RayProgram.STEP_STRIDE;
+        final int currentX = controlRod.x + rayProgram.steps[stepIndex + RayProgram.STEP_X];
+        final int currentZ = controlRod.z + rayProgram.steps[stepIndex + RayProgram.STEP_Z];
+        if (currentX < 0 || currentX >= x || currentZ < 0 || currentZ >= z) {
+            return -1;
+        }
+        return (currentX * z) + currentZ;
+    }
+    
+    /**
+     * Marks every rod whose cached response no longer matches the reactor's current state
+     * must be called on the main thread, with no irradiation requests in flight
+     *
+     * @param tolerance how far the hardness, fuel absorption coefficient, and moderator properties may drift, as a fraction of their current values
+     */
+    public void invalidate(double initialHardness, double fuelAbsorptionTemperatureCoefficient, double FuelAbsorptionCoefficient, double FuelModerationFactor, double fuelHardnessMultiplier, ObjectArrayList<ModeratorCache> moderatorCaches, double tolerance) {
+        this.initialHardness = initialHardness;
+        this.fuelAbsorptionTemperatureCoefficient = fuelAbsorptionTemperatureCoefficient;
+        for (int i = 0; i < controlRods.length; i++) {
+            if (!withinTolerance(initialHardness, tracedInitialHardnesses[i], tolerance) || !withinTolerance(fuelAbsorptionTemperatureCoefficient, tracedFuelAbsorptionTemperatureCoefficients[i], tolerance)) {
+                dirty[i] = true;
+            }
+        }
+        boolean invalidateAll = false;
+        if (FuelAbsorptionCoefficient != tracedFuelAbsorptionCoefficient || FuelModerationFactor != tracedFuelModerationFactor || fuelHardnessMultiplier != tracedFuelHardnessMultiplier) {
+            // config values, only change on reload
+            tracedFuelAbsorptionCoefficient = FuelAbsorptionCoefficient;
+            tracedFuelModerationFactor = FuelModerationFactor;
+            tracedFuelHardnessMultiplier = fuelHardnessMultiplier;
+            invalidateAll = true;
+        }
+        
+        final long[] changedModerators = this.changedModerators;
+        Arrays.fill(changedModerators, 0);
+        boolean moderatorsChanged = false;
+        for (int i = 0; i < moderatorCaches.size(); i++) {
+            final var moderatorCache = moderatorCaches.get(i);
+            final int index = i * 3;
+            if (!withinTolerance(moderatorCache.absorption, tracedModerators[index], tolerance) ||
+                        !withinTolerance(moderatorCache.moderation, tracedModerators[index + 1], tolerance) ||
+                        !withinTolerance(moderatorCache.heatEfficiency, tracedModerators[index + 2], tolerance)) {
+                tracedModerators[index] = moderatorCache.absorption;
+                tracedModerators[index + 1] = moderatorCache.moderation;
+                tracedModerators[index + 2] = moderatorCache.heatEfficiency;
+                changedModerators[i >> 6] |= 1L << (i & 63);
+                moderatorsChanged = true;
+            }
+        }
+        
+        if (invalidateAll) {
+            Arrays.fill(dirty, true);
+        } else if (moderatorsChanged) {
+            final int maskWords = this.maskWords;
+            for (int i = 0; i < controlRods.length; i++) {
+                for (int word = 0; word < maskWords; word++) {
+                    if ((moderatorMasks[i * maskWords + word] & changedModerators[word]) != 0) {
+                        dirty[i] = true;
+                        break;
+                    }
+                }
+            }
+        }
+        
+        for (int i = 0; i < controlRods.length; i++) {
+            final double insertion = controlRods[i].insertion;
+            if (insertion != tracedInsertions[i]) {
+                tracedInsertions[i] = insertion;
+                insertionsChanged = true;
+                for (int dependent : dependents[i]) {
+                    dirty[dependent] = true;
+                }
+            }
+        }
+    }
+    
+    private static boolean withinTolerance(double value, double traced, double tolerance) {
+        // never within it of NaN, so anything not traced yet always is
+        return Math.abs(value - traced) <= tolerance * Math.abs(value);
+    }
+    
+    /**
+     * Marks every rod dirty, for when the cached responses are stale for reasons invalidate cant see
+     */
+    public void invalidateAll() {
+        Arrays.fill(dirty, true);
+    }
+    
+    private void updateSymmetry() {
+        if (symmetry == null || !insertionsChanged) {
+            return;
+        }
+        insertionsChanged = false;
+        int activeTransforms = 1 << ReactorSymmetry.IDENTITY;
+        for (int transform = 1; transform < ReactorSymmetry.TRANSFORM_COUNT; transform++) {
+            final int[] images = symmetricRods[transform];
+            if (images == null) {
+                continue;
+            }
+            boolean symmetric = true;
+            for (int i = 0; i < images.length; i++) {
+                if (tracedInsertions[i] != tracedInsertions[images[i]]) {
+                    symmetric = false;
+                    break;
+                }
+            }
+            if (symmetric) {
+                activeTransforms |= 1 << transform;
+            }
+        }
+        if (activeTransforms == this.activeTransforms) {
+            return;
+        }
+        this.activeTransforms = activeTransforms;
+        for (int i = 0; i < controlRods.length; i++) {
+            // responses borrowed from a representative are only approximately right, get the real one now that its no longer shared
+            if (symmetryRepresentatives[i] != i) {
+                dirty[i] = true;
+            }
+            int representative = i;
+            for (int transform = 1; transform < ReactorSymmetry.TRANSFORM_COUNT; transform++) {
+                if ((activeTransforms & (1 << transform)) != 0) {
+                    representative = Math.min(representative, symmetricRods[transform][i]);
+                }
+            }
+            symmetryRepresentatives[i] = representative;
+        }
+    }
+    
+    /**
+     * Fills traceList with the rods that actually need to be traced this tick, one per structural class and insertion set
+     * the other dirty rods are filled in from them by resolveFollowers, once the traces are done
+     *
+     * @return number of rods to trace
+     */
+    public int buildTraceList(int[] traceList) {
+        return buildTraceList(traceList, Integer.MAX_VALUE);
+    }
+    
+    /**
+     * Same as above, but traces at most maxTraceCount rods, the rest stay dirty for the next tick
+     * and keep their previous response until then, successive ticks pick up where the last one stopped
+     */
+    public int buildTraceList(int[] traceList, int maxTraceCount) {
+        updateSymmetry();
+        // the first time around there is nothing to fall back on
+        final boolean limited = hasResponses && maxTraceCount < controlRods.length;
+        if (!limited) {
+            maxTraceCount = Integer.MAX_VALUE;
+        }
+        final int start = limited ? traceCursor : 0;
+        int nextCursor = -1;
+        int traceCount = 0;
+        int dirtyCount = 0;
+        leadersByHash.clear();
+        for (int n = 0; n < controlRods.length; n++) {
+            final int i = (start + n) % controlRods.length;
+            leaders[i] = -1;
+            symmetricLeaders[i] = -1;
+            if (!dirty[i] || symmetryRepresentatives[i] != i) {
+                // symmetric followers are done below, once its known which representatives are traced
+                continue;
+            }
+            int hash = structuralClasses[i] * 31 + Double.hashCode(tracedInsertions[i]);
+            final int[] visited = visitedRods[i];
+            for (int visitedRod : visited) {
+                hash = hash * 31 + Double.hashCode(tracedInsertions[visitedRod]);
+            }
+            final var candidates = leadersByHash.computeIfAbsent(hash, key -> new IntArrayList());
+            int leader = -1;
+            for (int j = 0; j < candidates.size(); j++) {
+                final int candidate = candidates.getInt(j);
+                if (sameInsertions(i, candidate)) {
+                    leader = candidate;
+                    break;
+                }
+            }
+            if (leader == -1) {
+                if (traceCount == maxTraceCount) {
+                    if (nextCursor == -1) {
+                        nextCursor = i;
+                    }
+                    continue;
+                }
+                leader = i;
+                candidates.add(i);
+                traceList[traceCount++] = i;
+            }
+            dirty[i] = false;
+            dirtyCount++;
+            leaders[i] = leader;
+            tracedInitialHardnesses[i] = initialHardness;
+            tracedFuelAbsorptionTemperatureCoefficients[i] = fuelAbsorptionTemperatureCoefficient;
+        }
+        if (symmetry != null) {
+            for (int i = 0; i < controlRods.length; i++) {
+                final int representative = symmetryRepresentatives[i];
+                // a representative that is still dirty wasnt traced, so neither is its orbit
+                if (dirty[i] && representative != i && !dirty[representative]) {
+                    dirty[i] = false;
+                    dirtyCount++;
+                    symmetricLeaders[i] = representative;
+                    tracedInitialHardnesses[i] = initialHardness;
+                    tracedFuelAbsorptionTemperatureCoefficients[i] = fuelAbsorptionTemperatureCoefficient;
+                }
+            }
+        }
+        if (limited && nextCursor != -1) {
+            traceCursor = nextCursor;
+        }
+        lastDirtyCount = dirtyCount;
+        lastTraceCount = traceCount;
+        return traceCount;
+    }
+    
+    private boolean sameInsertions(int a, int b) {
+        if (structuralClasses[a] != structuralClasses[b] || tracedInsertions[a] != tracedInsertions[b]) {
+            return false;
+        }
+        final int[] visitedA = visitedRods[a];
+        final int[] visitedB = visitedRods[b];
+        for (int i = 0; i < visitedA.length; i++) {
+            if (tracedInsertions[visitedA[i]] != tracedInsertions[visitedB[i]]) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Copies the leader's response to every rod that shared its trace this tick
+     */
+    public void resolveFollowers() {
+        // every rod is dirty the first time around, so after that, every rod has a response
+        if (lastDirtyCount != 0) {
+            hasResponses = true;
+        }
+        if (lastDirtyCount == lastTraceCount) {
+            return;
+        }
+        for (int i = 0; i < controlRods.length; i++) {
+            final int leader = leaders[i];
+            if (leader >= 0 && leader != i) {
+                fuelRFAdded[i] = fuelRFAdded[leader];
+                fuelRadAdded[i] = fuelRadAdded[leader];
+                caseRFAdded[i] = caseRFAdded[leader];
+            }
+        }
+        if (symmetry == null) {
+            return;
+        }
+        // representatives are never symmetric followers themselves, so they are final by now
+        for (int i = 0; i < controlRods.length; i++) {
+            final int leader = symmetricLeaders[i];
+            if (leader >= 0) {
+                fuelRFAdded[i] = fuelRFAdded[leader];
+                fuelRadAdded[i] = fuelRadAdded[leader];
+                caseRFAdded[i] = caseRFAdded[leader];
+            }
+        }
+    }
+    
+    /**
+     * Puts the rods of the last trace list back up for tracing next tick, without touching their current responses
+     * for when the traces are skipped, the rods just keep the responses from their previous trace until then
+     */
+    public void deferTraces() {
+        for (int i = 0; i < controlRods.length; i++) {
+            if (leaders[i] >= 0 || symmetricLeaders[i] >= 0) {
+                dirty[i] = true;
+                leaders[i] = -1;
+                symmetricLeaders[i] = -1;
+            }
+        }
+        lastDirtyCount = 0;
+        lastTraceCount = 0;
+    }
+    
+    /**
+     * Starts a cache that has never been traced off with other ones' responses, rod i's from from[i], every rod stays dirty
+     * a limited trace list can then fall back on those instead of having to trace every rod at once
+     */
+    public void seedResponses(IrradiationResponseCache[] from) {
+        if (hasResponses) {
+            return;
+        }
+        for (int i = 0; i < controlRods.length; i++) {
+            if (from[i] == null || !from[i].hasResponses || from[i].controlRods != controlRods) {
+                return;
+            }
+        }
+        for (int i = 0; i < controlRods.length; i++) {
+            fuelRFAdded[i] = from[i].fuelRFAdded[i];
+            fuelRadAdded[i] = from[i].fuelRadAdded[i];
+            caseRFAdded[i] = from[i].caseRFAdded[i];
+        }
+        hasResponses = true;
+    }
+    
+    /**
+     * @return if rod's response is from a trace in this cache, not seeded from another one
+     */
+    public boolean traced(int rod) {
+        return !Double.isNaN(tracedInitialHardnesses[rod]);
+    }
+    
+    /**
+     * @return if every rod has been traced at least once, otherwise deferring leaves them without any response
+     */
+    public boolean hasResponses() {
+        return hasResponses;
+    }
+    
+    public int activeSymmetries() {
+        return Integer.bitCount(activeTransforms) - 1;
+    }
+    
+    public int structuralClassCount() {
+        return structuralClassCount;
+    }
+    
+    public int lastDirtyCount() {
+        return lastDirtyCount;
+    }
+    
+    public int lastTraceCount() {
+        return lastTraceCount;
+    }
+    
+    public long footprintBytes(Reference2LongMap<Object> shared) {
+        shared.put(structure, structure.footprintBytes());
+        // per rod 6 doubles, 3 ints and a flag
+        return controlRods.length * (6L * 8 + 3L * 4 + 1) + tracedModerators.length * 8L + changedModerators.length * 8L;
+    }
+}
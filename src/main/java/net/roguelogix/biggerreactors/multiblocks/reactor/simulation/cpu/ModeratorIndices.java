@@ -0,0 +1,210 @@
+package net.roguelogix.biggerreactors.multiblocks.reactor.simulation.cpu;
+
+import it.unimi.dsi.fastutil.ints.IntList;
+import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.base.SharedStructures;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+/**
+ * The moderator index of every block of a full pass simulation, as narrow as its moderator count allows
+ * <p>
+ * Up to 16 moderators are packed two blocks to a byte, low nibble first, up to 128 are a byte per block, and up to 32768 a short per block
+ * Shared with other reactors of the same layout, see SharedStructures, so nothing may write to one once it's made, changed makes a new one
+ * Byte wide ones can instead be kept only in native memory, see sharedNative
+ */
+public final class ModeratorIndices {
+    
+    public static final int NIBBLE_WIDTH = 4;
+    public static final int BYTE_WIDTH = 8;
+    public static final int SHORT_WIDTH = 16;
+    
+    public final int width;
+    public final int length;
+    // nibbles or bytes, null at short width
+    @Nullable
+    public final byte[] bytes;
+    @Nullable
+    public final short[] shorts;
+    // set in place of bytes when they are native
+    @Nullable
+    public final NativeModeratorIndices nativeBytes;
+    
+    private ModeratorIndices(int width, int length, @Nullable byte[] bytes, @Nullable short[] shorts) {
+        this(width, length, bytes, shorts, null);
+    }
+    
+    private ModeratorIndices(int width, int length, @Nullable byte[] bytes, @Nullable short[] shorts, @Nullable NativeModeratorIndices nativeBytes) {
+        this.width = width;
+        this.length = length;
+        this.bytes = bytes;
+        this.shorts = shorts;
+        this.nativeBytes = nativeBytes;
+    }
+    
+    /**
+     * @param pack if up to 16 moderators may be packed into nibbles, otherwise they take a byte each like up to 128 do
+     * @return the narrowest width that holds every moderator index below moderatorCount
+     */
+    public static int width(int moderatorCount, boolean pack) {
+        if (pack && moderatorCount <= 16) {
+            return NIBBLE_WIDTH;
+        }
+        if (moderatorCount <= 128) {
+            return BYTE_WIDTH;
+        }
+        if (moderatorCount <= 32768) {
+            return SHORT_WIDTH;
+        }
+        throw new IllegalArgumentException("Full pass reactor simulations only support 32768 moderator types");
+    }
+    
+    /**
+     * @param moderatorIndices one byte per block, packed into nibbles if width is NIBBLE_WIDTH
+     */
+    public static ModeratorIndices shared(byte[] moderatorIndices, int width) {
+        if (width == NIBBLE_WIDTH) {
+            final byte[] nibbles = new byte[(moderatorIndices.length + 1) >> 1];
+            for (int i = 0; i < moderatorIndices.length; i++) {
+                nibbles[i >> 1] |= (byte) (moderatorIndices[i] << ((i & 1) << 2));
+            }
+            return intern(new ModeratorIndices(NIBBLE_WIDTH, moderatorIndices.length, nibbles, null));
+        }
+        if (width != BYTE_WIDTH) {
+            throw new IllegalArgumentException("Byte moderator indices only go into nibble or byte width");
+        }
+        return intern(new ModeratorIndices(BYTE_WIDTH, moderatorIndices.length, moderatorIndices, null));
+    }
+    
+    public static ModeratorIndices shared(short[] moderatorIndices) {
+        return intern(new ModeratorIndices(SHORT_WIDTH, moderatorIndices.length, null, moderatorIndices));
+    }
+    
+    /**
+     * like shared at byte width, but kept only in native memory, moderatorIndices itself isn't held on to
+     * the caller holds a reference to the native memory, and must give it back with release
+     */
+    public static ModeratorIndices sharedNative(byte[] moderatorIndices) {
+        final var content = ByteBuffer.wrap(moderatorIndices);
+        final long hash = hash(Arrays.hashCode(moderatorIndices), moderatorIndices.length, BYTE_WIDTH);
+        while (true) {
+            final var shared = SharedStructures.intern(hash, ModeratorIndices.class, existing -> existing.nativeBytes != null && !existing.nativeBytes.freed() && existing.nativeBytes.buffer.equals(content), () -> new ModeratorIndices(BYTE_WIDTH, moderatorIndices.length, null, null, new NativeModeratorIndices(moderatorIndices)));
+            assert shared.nativeBytes != null;
+            if (shared.nativeBytes.tryAcquire()) {
+                return shared;
+            }
+            // the last reference went away between finding it and taking one, a new copy is made next time around
+        }
+    }
+    
+    private static ModeratorIndices intern(ModeratorIndices moderatorIndices) {
+        final int contentHash = moderatorIndices.shorts != null ? Arrays.hashCode(moderatorIndices.shorts) : Arrays.hashCode(moderatorIndices.bytes);
+        return SharedStructures.intern(hash(contentHash, moderatorIndices.length, moderatorIndices.width), ModeratorIndices.class, existing -> existing.contentEquals(moderatorIndices), () -> moderatorIndices);
+    }
+    
+    private static long hash(int contentHash, int length, int width) {
+        return ((long) contentHash << 32) | ((long) length << 5) | width;
+    }
+    
+    private boolean contentEquals(ModeratorIndices other) {
+        return width == other.width && length == other.length && nativeBytes == null && other.nativeBytes == null && Arrays.equals(bytes, other.bytes) && Arrays.equals(shorts, other.shorts);
+    }
+    
+    /**
+     * gives back the reference to native memory from sharedNative or changed, nothing to do for ones on the heap
+     */
+    public void release() {
+        if (nativeBytes != null) {
+            nativeBytes.release();
+        }
+    }
+    
+    public int get(int moderatorIndexIndex) {
+        if (width == NIBBLE_WIDTH) {
+            return (bytes[moderatorIndexIndex >> 1] >> ((moderatorIndexIndex & 1) << 2)) & 15;
+        }
+        if (nativeBytes != null) {
+            return nativeBytes.get(moderatorIndexIndex);
+        }
+        return bytes != null ? bytes[moderatorIndexIndex] : shorts[moderatorIndexIndex];
+    }
+    
+    /**
+     * widens length indices from start into destination, Vector API gathers only take int index maps
+     */
+    public void copyInto(int start, int[] destination, int destinationStart, int length) {
+        if (width == NIBBLE_WIDTH || nativeBytes != null) {
+            for (int i = 0; i < length; i++) {
+                destination[destinationStart + i] = get(start + i);
+            }
+        } else if (bytes != null) {
+            for (int i = 0; i < length; i++) {
+                destination[destinationStart + i] = bytes[start + i];
+            }
+        } else {
+            for (int i = 0; i < length; i++) {
+                destination[destinationStart + i] = shorts[start + i];
+            }
+        }
+    }
+    
+    /**
+     * @return a copy, at the same width and in the same memory, with each of moderatorIndexIndices set to the moderator index at the same position in moderators
+     */
+    public ModeratorIndices changed(IntList moderatorIndexIndices, IntList moderators) {
+        if (nativeBytes != null) {
+            final byte[] bytes = new byte[length];
+            nativeBytes.buffer.get(0, bytes);
+            for (int i = 0; i < moderatorIndexIndices.size(); i++) {
+                bytes[moderatorIndexIndices.getInt(i)] = (byte) moderators.getInt(i);
+            }
+            return sharedNative(bytes);
+        }
+        if (shorts != null) {
+            final short[] shorts = this.shorts.clone();
+            for (int i = 0; i < moderatorIndexIndices.size(); i++) {
+                shorts[moderatorIndexIndices.getInt(i)] = (short) moderators.getInt(i);
+            }
+            return intern(new ModeratorIndices(width, length, null, shorts));
+        }
+        assert bytes != null;
+        final byte[] bytes = this.bytes.clone();
+        for (int i = 0; i < moderatorIndexIndices.size(); i++) {
+            final int moderatorIndexIndex = moderatorIndexIndices.getInt(i);
+            if (width == NIBBLE_WIDTH) {
+                final int shift = (moderatorIndexIndex & 1) << 2;
+                bytes[moderatorIndexIndex >> 1] = (byte) ((bytes[moderatorIndexIndex >> 1] & ~(15 << shift)) | (moderators.getInt(i) << shift));
+            } else {
+                bytes[moderatorIndexIndex] = (byte) moderators.getInt(i);
+            }
+        }
+        return intern(new ModeratorIndices(width, length, bytes, null));
+    }
+    
+    /**
+     * @return equal to the key of any other run of blocks in this with the same moderator indices, for grouping identical columns
+     */
+    public Object columnKey(int start, int length) {
+        if (shorts != null) {
+            return ShortBuffer.wrap(shorts, start, length);
+        }
+        if (bytes != null && width == BYTE_WIDTH) {
+            return ByteBuffer.wrap(bytes, start, length);
+        }
+        // native memory may be freed while keys are still around, so those are copied like nibbles
+        final byte[] column = new byte[length];
+        for (int i = 0; i < length; i++) {
+            column[i] = (byte) get(start + i);
+        }
+        return ByteBuffer.wrap(column);
+    }
+    
+    public long footprintBytes() {
+        if (nativeBytes != null) {
+            return nativeBytes.capacity;
+        }
+        return shorts != null ? shorts.length * 2L : bytes.length;
+    }
+}
@@ -0,0 +1,72 @@
+package net.roguelogix.biggerreactors.multiblocks.reactor.simulation.cpu;
+
+import org.lwjgl.system.MemoryUtil;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+
+/**
+ * Page aligned native memory holding byte wide moderator indices, the only copy of them when a ModeratorIndices is native, see ModeratorIndices.sharedNative
+ * <p>
+ * Every simulation using it holds one reference, and gives it back with release
+ * The memory is freed as soon as the last reference is given back, or once it's unreachable if some never are
+ * Nothing may write to it once it's made, layout changes make a new one
+ */
+public final class NativeModeratorIndices {
+    
+    private static final Cleaner CLEANER = Cleaner.create();
+    
+    public final long address;
+    public final int length;
+    // the length rounded up to whole cache lines
+    public final int capacity;
+    // view over the indices, it doesn't own the memory
+    public final ByteBuffer buffer;
+    private final Cleaner.Cleanable cleanable;
+    private int references = 0;
+    private volatile boolean freed = false;
+    
+    NativeModeratorIndices(byte[] moderatorIndices) {
+        length = moderatorIndices.length;
+        capacity = Math.max(1, (length + MemoryUtil.CACHE_LINE_SIZE - 1) / MemoryUtil.CACHE_LINE_SIZE) * MemoryUtil.CACHE_LINE_SIZE;
+        final long address = MemoryUtil.nmemAlignedAlloc(MemoryUtil.PAGE_SIZE, capacity);
+        if (address == MemoryUtil.NULL) {
+            throw new IllegalStateException("Failed to allocate " + capacity + " bytes of native moderator indices");
+        }
+        this.address = address;
+        buffer = MemoryUtil.memByteBuffer(address, length);
+        MemoryUtil.memSet(address, 0, capacity);
+        buffer.put(0, moderatorIndices);
+        cleanable = CLEANER.register(this, () -> MemoryUtil.nmemAlignedFree(address));
+    }
+    
+    boolean freed() {
+        return freed;
+    }
+    
+    synchronized boolean tryAcquire() {
+        if (freed) {
+            return false;
+        }
+        references++;
+        return true;
+    }
+    
+    /**
+     * gives back a reference, neither address nor buffer may be used by the caller after this
+     */
+    public synchronized void release() {
+        if (references <= 0) {
+            throw new IllegalStateException("Native moderator indices released more times than acquired");
+        }
+        references--;
+        if (references == 0) {
+            freed = true;
+            cleanable.clean();
+        }
+    }
+    
+    public byte get(int moderatorIndexIndex) {
+        return MemoryUtil.memGetByte(address + moderatorIndexIndex);
+    }
+}
@@ -0,0 +1,49 @@
+package net.roguelogix.biggerreactors.multiblocks.reactor.simulation.cpu;
+
+import net.roguelogix.biggerreactors.Config;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Work stealing pool shared by all multithreaded reactor simulations, kept apart from Queues.offThread so reactors only compete with each other
+ * <p>
+ * Created on first use, thread count is read from the config then, changing it needs a restart
+ */
+public final class ReactorSimulationPool {
+    
+    private static final AtomicInteger threadIndex = new AtomicInteger();
+    
+    private static final class Holder {
+        private static final ForkJoinPool POOL = createPool();
+    }
+    
+    private ReactorSimulationPool() {
+    }
+    
+    private static ForkJoinPool createPool() {
+        int threads = Config.CONFIG.Reactor.ModeSpecific.SimulationThreads;
+        if (threads <= 0) {
+            // leave a core for the server thread
+            threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        }
+        return new ForkJoinPool(threads, pool -> {
+            final var thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("BiggerReactors Simulation Thread #" + threadIndex.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }, null, false);
+    }
+    
+    public static ForkJoinPool pool() {
+        return Holder.POOL;
+    }
+    
+    public static String debugString() {
+        final var pool = Holder.POOL;
+        return "SimulationThreads: " + pool.getParallelism() + "\n" +
+                       "SimulationActiveThreads: " + pool.getActiveThreadCount() + "\n" +
+                       "SimulationQueueDepth: " + (pool.getQueuedTaskCount() + pool.getQueuedSubmissionCount()) + "\n" +
+                       "SimulationSteals: " + pool.getStealCount() + "\n";
+    }
+}
@@ -0,0 +1,167 @@
+package net.roguelogix.biggerreactors.multiblocks.reactor.simulation.cpu;
+
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import net.minecraftforge.common.MinecraftForge;
+import net.minecraftforge.event.TickEvent;
+import net.minecraftforge.event.server.ServerStoppedEvent;
+import net.roguelogix.biggerreactors.Config;
+import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.base.SimulationFidelity;
+import net.roguelogix.phosphophyllite.registry.OnModLoad;
+
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects the irradiation work of every multithreaded simulation over a server tick, and dispatches it all to the pool at once when the tick ends
+ * <p>
+ * If the work is estimated to take longer than IrradiationBudgetMillis, the reactors that waited the least are pushed back a tick
+ * and keep using their last irradiation responses until then
+ * <p>
+ * Reactors small enough to be traced in a single task are batched together, a handful of tasks for all of them instead of one each
+ */
+public final class ReactorSimulationScheduler {
+    
+    private static final ObjectArrayList<FullPassReactorSimulation.MultiThreaded> pending = new ObjectArrayList<>();
+    private static final ObjectArrayList<FullPassReactorSimulation.MultiThreaded> batched = new ObjectArrayList<>();
+    // measured by the tasks themselves, used to turn trace costs into time
+    private static final LongAdder workNanos = new LongAdder();
+    private static final LongAdder workCost = new LongAdder();
+    private static double nanosPerCost = 2;
+    private static long tickStartTime = 0;
+    
+    private ReactorSimulationScheduler() {
+    }
+    
+    @OnModLoad
+    private static void onModLoad() {
+        MinecraftForge.EVENT_BUS.addListener(ReactorSimulationScheduler::onServerTick);
+        MinecraftForge.EVENT_BUS.addListener(ReactorSimulationScheduler::onServerStopped);
+    }
+    
+    private static void onServerTick(TickEvent.ServerTickEvent event) {
+        if (event.phase == TickEvent.Phase.START) {
+            tickStartTime = System.nanoTime();
+            return;
+        }
+        SimulationFidelity.recordTick(System.nanoTime() - tickStartTime);
+        dispatchPending();
+    }
+    
+    private static void onServerStopped(ServerStoppedEvent event) {
+        synchronized (pending) {
+            pending.clear();
+        }
+    }
+    
+    static void schedule(FullPassReactorSimulation.MultiThreaded simulation) {
+        synchronized (pending) {
+            pending.add(simulation);
+        }
+    }
+    
+    /**
+     * drops a simulation that is still waiting on the end of the tick without running it
+     */
+    static void unschedule(FullPassReactorSimulation.MultiThreaded simulation) {
+        synchronized (pending) {
+            pending.remove(simulation);
+        }
+    }
+    
+    /**
+     * dispatches a simulation that is still waiting on the end of the tick, regardless of the budget
+     * for simulations ticked outside a server tick
+     */
+    static void dispatchNow(FullPassReactorSimulation.MultiThreaded simulation) {
+        synchronized (pending) {
+            pending.remove(simulation);
+        }
+        simulation.dispatchIrradiation();
+    }
+    
+    static void recordWork(long nanos, long cost) {
+        workNanos.add(nanos);
+        workCost.add(cost);
+    }
+    
+    public static void dispatchPending() {
+        synchronized (pending) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            final long measuredCost = workCost.sumThenReset();
+            final long measuredNanos = workNanos.sumThenReset();
+            if (measuredCost > 0) {
+                nanosPerCost = nanosPerCost * 0.8 + ((double) measuredNanos / measuredCost) * 0.2;
+            }
+            
+            final double budgetMillis = Config.CONFIG.Reactor.ModeSpecific.irradiationBudgetMillis();
+            final boolean batching = Config.CONFIG.Reactor.ModeSpecific.batchSmallReactors();
+            final double allowedCost = budgetMillis <= 0 ? Double.POSITIVE_INFINITY : budgetMillis * 1_000_000 * ReactorSimulationPool.pool().getParallelism() / nanosPerCost;
+            
+            // longest waiting first, anything deferred moves up until it gets through
+            pending.sort((a, b) -> Integer.compare(b.deferredTicks, a.deferredTicks));
+            double scheduledCost = 0;
+            long batchedCost = 0;
+            batched.clear();
+            for (int i = 0; i < pending.size(); i++) {
+                final var simulation = pending.get(i);
+                final long cost = simulation.pendingIrradiationCost();
+                // the first one always goes, so a reactor too big for the budget on its own still runs
+                if (i == 0 || !simulation.hasIrradiationResponses() || scheduledCost + cost <= allowedCost) {
+                    scheduledCost += cost;
+                    if (batching && simulation.batchable()) {
+                        batched.add(simulation);
+                        batchedCost += cost;
+                    } else {
+                        simulation.dispatchIrradiation();
+                    }
+                } else {
+                    simulation.deferIrradiation();
+                }
+            }
+            pending.clear();
+            dispatchBatches(batchedCost);
+        }
+    }
+    
+    /**
+     * small reactors cost more to submit one by one than to trace, so they are split into one task per pool thread, by cost
+     */
+    private static void dispatchBatches(long batchedCost) {
+        if (batched.isEmpty()) {
+            return;
+        }
+        final long batchCost = Math.max(1, batchedCost / ReactorSimulationPool.pool().getParallelism());
+        int batchStart = 0;
+        long cost = 0;
+        for (int i = 0; i < batched.size(); i++) {
+            cost += batched.get(i).pendingIrradiationCost();
+            if (cost >= batchCost || i == batched.size() - 1) {
+                final var tasks = new ForkJoinTask<?>[i + 1 - batchStart];
+                for (int j = 0; j < tasks.length; j++) {
+                    tasks[j] = batched.get(batchStart + j).dispatchBatchedIrradiation();
+                }
+                ReactorSimulationPool.pool().execute(() -> runBatch(tasks));
+                batchStart = i + 1;
+                cost = 0;
+            }
+        }
+        batched.clear();
+    }
+    
+    private static void runBatch(ForkJoinTask<?>[] tasks) {
+        //noinspection ForLoopReplaceableByForEach
+        for (int i = 0; i < tasks.length; i++) {
+            try {
+                tasks[i].invoke();
+            } catch (Throwable ignored) {
+                // kept by that reactor's own task, it rethrows when the reactor joins it, the rest of the batch still runs
+            }
+        }
+    }
+    
+    public static String debugString() {
+        return "SimulationNanosPerCost: " + nanosPerCost + "\n";
+    }
+}
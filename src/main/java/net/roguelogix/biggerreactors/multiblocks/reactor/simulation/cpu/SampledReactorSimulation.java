@@ -0,0 +1,217 @@
+package net.roguelogix.biggerreactors.multiblocks.reactor.simulation.cpu;
+
+import it.unimi.dsi.fastutil.objects.Reference2LongMap;
+import net.roguelogix.biggerreactors.Config;
+import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.SimulationDescription;
+import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.base.SimulationFidelity;
+
+import java.util.SplittableRandom;
+
+/**
+ * Traces a random subset of (fuel rod, ray) pairs each tick instead of all of them, and scales what they add up to the whole reactor
+ * <p>
+ * A sample traces every ray once, each from a rod picked in proportion to its initial intensity, so costs as much as tracing one rod
+ * Mostly inserted rods are rarely traced, the estimate stays unbiased either way
+ * The number of samples follows a running estimate of the variance of a single one, to keep the relative standard error of
+ * fuelRFAdded and fuelRadAdded around Config.Reactor.ModeSpecific.SampledRelativeError
+ * Once that takes a sample per rod or more, which costs as much as a full pass, every rod is traced instead, which is exact
+ */
+public class SampledReactorSimulation extends FullPassReactorSimulation {
+    
+    // how much each tick's sample variance moves the running estimate
+    private static final double VARIANCE_SMOOTHING = 0.125;
+    
+    private final SplittableRandom random = new SplittableRandom();
+    // running total of initialIntensties, rebuilt every tick
+    private final double[] intensityPrefix;
+    // what SampledRelativeError asks for, at one sample per rod or more a full pass costs the same and is exact
+    private int sampleCount;
+    private boolean tracedAllRods = false;
+    private boolean haveEstimate = false;
+    // of a single sample, normalized to the total initial intensity
+    private double fuelRFMean, fuelRFVariance;
+    private double fuelRadMean, fuelRadVariance;
+    private double lastRelativeError = 0;
+    
+    public SampledReactorSimulation(SimulationDescription simulationDescription) {
+        // rods are never traced through the response caches, so they aren't built
+        super(simulationDescription, false, Config.CONFIG.Reactor.ModeSpecific.packedModeratorIndices(), false);
+        intensityPrefix = new double[controlRods.length];
+        sampleCount = Config.CONFIG.Reactor.ModeSpecific.SampledMinimumTraces;
+    }
+    
+    @Override
+    protected double radiate() {
+        if (fuelTank.fuel() <= 0) {
+            return 0;
+        }
+        
+        setupIrradiationTick();
+        fullPassIrradiationRequest.updateCache();
+        sampleIrradiation();
+        return realizeIrradiationTick();
+    }
+    
+    private void sampleIrradiation() {
+        double totalIntensity = 0;
+        for (int i = 0; i < controlRods.length; i++) {
+            totalIntensity += initialIntensties[i];
+            intensityPrefix[i] = totalIntensity;
+        }
+        if (totalIntensity <= 0) {
+            // every rod is fully inserted, nothing to trace
+            return;
+        }
+        
+        tracedAllRods = sampleCount >= controlRods.length;
+        if (tracedAllRods) {
+            traceAllRods(totalIntensity);
+            updateSampleCount();
+            return;
+        }
+        
+        final var request = fullPassIrradiationRequest;
+        final int rayCount = rayProgram.rayCount;
+        final int samples = sampleCount;
+        double fuelRFSum = 0, fuelRFSquares = 0;
+        double fuelRadSum = 0, fuelRadSquares = 0;
+        double caseRFSum = 0;
+        for (int i = 0; i < samples; i++) {
+            // every ray once, each from its own rod, rays differ from each other far more than rods do
+            double fuelRF = 0, fuelRad = 0;
+            for (int ray = 0; ray < rayCount; ray++) {
+                final int cri = pickControlRod(random.nextDouble() * totalIntensity);
+                traceRays(request, cri, ray, ray + 1);
+                fuelRF += request.fuelRFAdded;
+                fuelRad += request.fuelRadAdded;
+                caseRFSum += request.caseRFAdded;
+            }
+            fuelRFSum += fuelRF;
+            fuelRFSquares += fuelRF * fuelRF;
+            fuelRadSum += fuelRad;
+            fuelRadSquares += fuelRad * fuelRad;
+        }
+        
+        final double tickFuelRFMean = fuelRFSum / samples;
+        final double tickFuelRadMean = fuelRadSum / samples;
+        fuelRFAdded += tickFuelRFMean * totalIntensity;
+        fuelRadAdded += tickFuelRadMean * totalIntensity;
+        caseRFAdded += (caseRFSum / samples) * totalIntensity;
+        
+        final double tickFuelRFVariance = samples > 1 ? Math.max(0, (fuelRFSquares - fuelRFSum * tickFuelRFMean) / (samples - 1)) : 0;
+        final double tickFuelRadVariance = samples > 1 ? Math.max(0, (fuelRadSquares - fuelRadSum * tickFuelRadMean) / (samples - 1)) : 0;
+        lastRelativeError = Math.max(relativeError(tickFuelRFMean, tickFuelRFVariance, samples), relativeError(tickFuelRadMean, tickFuelRadVariance, samples));
+        updateEstimate(tickFuelRFMean, tickFuelRFVariance, tickFuelRadMean, tickFuelRadVariance);
+        updateSampleCount();
+    }
+    
+    /**
+     * traces every ray from every rod, each weighted by how likely a sample is to pick that rod for it
+     * exact, and gives the exact variance of a single sample, so the sample count can still come back down
+     */
+    private void traceAllRods(double totalIntensity) {
+        final var request = fullPassIrradiationRequest;
+        final int rayCount = rayProgram.rayCount;
+        double fuelRF = 0, fuelRFVariance = 0;
+        double fuelRad = 0, fuelRadVariance = 0;
+        double caseRF = 0;
+        for (int ray = 0; ray < rayCount; ray++) {
+            // the rod a sample picks for each ray is independent, so their variances add up
+            double rayFuelRF = 0, rayFuelRFSquares = 0;
+            double rayFuelRad = 0, rayFuelRadSquares = 0;
+            for (int i = 0; i < controlRods.length; i++) {
+                final double probability = initialIntensties[i] / totalIntensity;
+                if (probability <= 0) {
+                    continue;
+                }
+                traceRays(request, i, ray, ray + 1);
+                rayFuelRF += probability * request.fuelRFAdded;
+                rayFuelRFSquares += probability * request.fuelRFAdded * request.fuelRFAdded;
+                rayFuelRad += probability * request.fuelRadAdded;
+                rayFuelRadSquares += probability * request.fuelRadAdded * request.fuelRadAdded;
+                caseRF += probability * request.caseRFAdded;
+            }
+            fuelRF += rayFuelRF;
+            fuelRFVariance += Math.max(0, rayFuelRFSquares - rayFuelRF * rayFuelRF);
+            fuelRad += rayFuelRad;
+            fuelRadVariance += Math.max(0, rayFuelRadSquares - rayFuelRad * rayFuelRad);
+        }
+        fuelRFAdded += fuelRF * totalIntensity;
+        fuelRadAdded += fuelRad * totalIntensity;
+        caseRFAdded += caseRF * totalIntensity;
+        lastRelativeError = 0;
+        updateEstimate(fuelRF, fuelRFVariance, fuelRad, fuelRadVariance);
+    }
+    
+    private void updateEstimate(double tickFuelRFMean, double tickFuelRFVariance, double tickFuelRadMean, double tickFuelRadVariance) {
+        if (haveEstimate) {
+            fuelRFMean += (tickFuelRFMean - fuelRFMean) * VARIANCE_SMOOTHING;
+            fuelRFVariance += (tickFuelRFVariance - fuelRFVariance) * VARIANCE_SMOOTHING;
+            fuelRadMean += (tickFuelRadMean - fuelRadMean) * VARIANCE_SMOOTHING;
+            fuelRadVariance += (tickFuelRadVariance - fuelRadVariance) * VARIANCE_SMOOTHING;
+        } else {
+            fuelRFMean = tickFuelRFMean;
+            fuelRFVariance = tickFuelRFVariance;
+            fuelRadMean = tickFuelRadMean;
+            fuelRadVariance = tickFuelRadVariance;
+            haveEstimate = true;
+        }
+    }
+    
+    /**
+     * @param intensity 0 until the total initial intensity
+     * @return the first rod whose running total is above intensity
+     */
+    private int pickControlRod(double intensity) {
+        int low = 0;
+        int high = intensityPrefix.length - 1;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (intensityPrefix[mid] > intensity) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+    
+    private static double relativeError(double mean, double variance, int samples) {
+        if (mean <= 0) {
+            return 0;
+        }
+        return Math.sqrt(variance / samples) / mean;
+    }
+    
+    /**
+     * enough samples to get both estimates to the target error, if the running variance holds
+     */
+    private void updateSampleCount() {
+        final double targetError = Config.CONFIG.Reactor.ModeSpecific.SampledRelativeError;
+        final double requiredSamples = Math.max(requiredSamples(fuelRFMean, fuelRFVariance, targetError), requiredSamples(fuelRadMean, fuelRadVariance, targetError));
+        sampleCount = (int) Math.max(Config.CONFIG.Reactor.ModeSpecific.SampledMinimumTraces, Math.min(Integer.MAX_VALUE, Math.ceil(requiredSamples)));
+    }
+    
+    private static double requiredSamples(double mean, double variance, double targetError) {
+        if (mean <= 0) {
+            return 0;
+        }
+        final double targetDeviation = targetError * mean;
+        return variance / (targetDeviation * targetDeviation);
+    }
+    
+    @Override
+    public long footprintBytes(Reference2LongMap<Object> shared) {
+        return super.footprintBytes(shared) + intensityPrefix.length * 8L;
+    }
+    
+    @Override
+    public String debugString() {
+        final int rods = controlRods.length;
+        final String traces = tracedAllRods ? "full pass of " + rods + " rods (" + sampleCount + " samples wanted)" : sampleCount + "/" + rods;
+        return "SimulationFidelity: " + SimulationFidelity.describe(fidelityLevel) + "\n" +
+                       "SampledTraces: " + traces + "\n" +
+                       "SampledRelativeError: " + String.format("%.2f%%", lastRelativeError * 100) + "\n" +
+                       SimulationFidelity.debugString();
+    }
+}
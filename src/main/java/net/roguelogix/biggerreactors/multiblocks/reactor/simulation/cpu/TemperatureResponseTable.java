@@ -0,0 +1,233 @@
+package net.roguelogix.biggerreactors.multiblocks.reactor.simulation.cpu;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.Reference2LongMap;
+import it.unimi.dsi.fastutil.objects.Reference2LongOpenHashMap;
+import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.base.ModeratorCache;
+
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+/**
+ * Irradiation responses of every rod at fuel temperatures temperatureStep apart, interpolated to the actual fuel temperature
+ * <p>
+ * Fuel temperature only reaches the traces through the initial hardness and the fuel absorption coefficient, so with the insertions and moderators held,
+ * a rod's response is a smooth function of it, reactors heating up or cooling down reuse the samples they already passed instead of retracing every tick
+ * <p>
+ * Each sample temperature is its own IrradiationResponseCache, only brought up to date while the temperature is next to it,
+ * so changed insertions are retraced at the two samples in use, and the others catch up if the temperature ever gets back to them
+ * Trace list entries below rodCount are rods of the lower sample, the rest are rodCount plus the rod, of the upper one
+ * <p>
+ * A sample used for the first time starts off with the responses of the closest ones already traced, so a limited trace list stays limited across both
+ */
+public class TemperatureResponseTable {
+    
+    // samples furthest from the current temperature are dropped past either of these, but the two in use are always kept
+    private static final int MAX_SAMPLES = 64;
+    private static final long MAX_SAMPLE_BYTES = 8L << 20;
+    
+    public final double[] fuelRFAdded;
+    public final double[] fuelRadAdded;
+    public final double[] caseRFAdded;
+    
+    private final double temperatureStep;
+    private final int rodCount;
+    private final Supplier<IrradiationResponseCache> cacheFactory;
+    private final Int2ObjectOpenHashMap<IrradiationResponseCache> samples = new Int2ObjectOpenHashMap<>();
+    private final int[] upperTraceList;
+    // per rod, scratch for seedSample
+    private final int[] closestDistances;
+    private final IrradiationResponseCache[] closestSamples;
+    // from MAX_SAMPLES and MAX_SAMPLE_BYTES, once the first sample shows how big they are
+    private int maxSamples = 0;
+    
+    private int lowerSample;
+    private IrradiationResponseCache lower;
+    private IrradiationResponseCache upper;
+    // how far the temperature is from the lower sample to the upper one, 0-1
+    private double upperWeight;
+    private final double[] initialHardness = new double[2];
+    private final double[] fuelAbsorptionTemperatureCoefficient = new double[2];
+    private int lastTraceCount = 0;
+    
+    /**
+     * @param cacheFactory makes an empty response cache, for the layout and ray program the table is for
+     */
+    public TemperatureResponseTable(int rodCount, double temperatureStep, Supplier<IrradiationResponseCache> cacheFactory) {
+        if (!(temperatureStep > 0)) {
+            throw new IllegalArgumentException("Temperature response tables need a positive temperature step");
+        }
+        this.rodCount = rodCount;
+        this.temperatureStep = temperatureStep;
+        this.cacheFactory = cacheFactory;
+        fuelRFAdded = new double[rodCount];
+        fuelRadAdded = new double[rodCount];
+        caseRFAdded = new double[rodCount];
+        upperTraceList = new int[rodCount];
+        closestDistances = new int[rodCount];
+        closestSamples = new IrradiationResponseCache[rodCount];
+    }
+    
+    /**
+     * Picks the samples either side of the fuel temperature, and fills traceList with the rods that need tracing at either of them
+     * must be called on the main thread, with no irradiation requests in flight
+     *
+     * @param traceList     at least twice the rod count long
+     * @param maxTraceCount for both samples together, though neither can be limited until it has responses
+     * @return number of entries to trace
+     */
+    public int buildTraceList(double fuelTemperature, double FuelAbsorptionCoefficient, double FuelModerationFactor, double fuelHardnessMultiplier, ObjectArrayList<ModeratorCache> moderatorCaches, double tolerance, int[] traceList, int maxTraceCount) {
+        final double position = Math.max(0, fuelTemperature) / temperatureStep;
+        lowerSample = (int) position;
+        upperWeight = position - lowerSample;
+        lower = sample(lowerSample);
+        upper = sample(lowerSample + 1);
+        seedSample(lower, lowerSample);
+        seedSample(upper, lowerSample + 1);
+        evictSamples();
+        
+        for (int i = 0; i < 2; i++) {
+            final double sampleTemperature = (lowerSample + i) * temperatureStep;
+            initialHardness[i] = FullPassReactorSimulation.initialHardness(sampleTemperature);
+            fuelAbsorptionTemperatureCoefficient[i] = FullPassReactorSimulation.fuelAbsorptionTemperatureCoefficient(sampleTemperature);
+            final var cache = i == 0 ? lower : upper;
+            // sample parameters never drift, so this only catches insertions, moderators, and config reloads
+            cache.invalidate(initialHardness[i], fuelAbsorptionTemperatureCoefficient[i], FuelAbsorptionCoefficient, FuelModerationFactor, fuelHardnessMultiplier, moderatorCaches, tolerance);
+        }
+        // the upper sample gets up to half, the lower one whatever is left
+        final int upperCount = upper.buildTraceList(upperTraceList, maxTraceCount / 2);
+        int traceCount = lower.buildTraceList(traceList, Math.max(0, maxTraceCount - upperCount));
+        for (int i = 0; i < upperCount; i++) {
+            traceList[traceCount++] = rodCount + upperTraceList[i];
+        }
+        lastTraceCount = traceCount;
+        return traceCount;
+    }
+    
+    private IrradiationResponseCache sample(int sample) {
+        var cache = samples.get(sample);
+        if (cache == null) {
+            cache = cacheFactory.get();
+            samples.put(sample, cache);
+            if (maxSamples == 0) {
+                final long sampleBytes = Math.max(1, cache.footprintBytes(new Reference2LongOpenHashMap<>()));
+                maxSamples = (int) Math.max(2, Math.min(MAX_SAMPLES, MAX_SAMPLE_BYTES / sampleBytes));
+            }
+        }
+        return cache;
+    }
+    
+    /**
+     * starts a sample that was never traced off with the closest ones that were, rod by rod
+     * seeded responses are never passed on, while the temperature moves faster than the samples fill in they would end up far from where they were traced
+     */
+    private void seedSample(IrradiationResponseCache cache, int sample) {
+        if (cache.hasResponses()) {
+            return;
+        }
+        final int[] closestDistances = this.closestDistances;
+        final IrradiationResponseCache[] closest = this.closestSamples;
+        Arrays.fill(closestDistances, Integer.MAX_VALUE);
+        Arrays.fill(closest, null);
+        for (var entry : samples.int2ObjectEntrySet()) {
+            final var other = entry.getValue();
+            if (!other.hasResponses()) {
+                continue;
+            }
+            final int distance = Math.abs(entry.getIntKey() - sample);
+            for (int i = 0; i < rodCount; i++) {
+                // a seeded response only stands in for a rod no sample has traced itself
+                final int rodDistance = other.traced(i) ? distance : (Integer.MAX_VALUE >> 1) + distance;
+                if (rodDistance < closestDistances[i]) {
+                    closest[i] = other;
+                    closestDistances[i] = rodDistance;
+                }
+            }
+        }
+        cache.seedResponses(closest);
+        Arrays.fill(closest, null);
+    }
+    
+    private void evictSamples() {
+        // distances are doubled and from between the two samples in use, so neither of them is ever the furthest
+        final int middle = lowerSample * 2 + 1;
+        while (samples.size() > maxSamples) {
+            int furthest = lowerSample;
+            for (int sample : samples.keySet()) {
+                if (Math.abs(sample * 2 - middle) > Math.abs(furthest * 2 - middle)) {
+                    furthest = sample;
+                }
+            }
+            samples.remove(furthest);
+        }
+    }
+    
+    /**
+     * @return the response cache a trace list entry writes its trace into
+     */
+    public IrradiationResponseCache cache(int entry) {
+        return entry < rodCount ? lower : upper;
+    }
+    
+    public int rod(int entry) {
+        return entry < rodCount ? entry : entry - rodCount;
+    }
+    
+    public double initialHardness(int entry) {
+        return initialHardness[entry < rodCount ? 0 : 1];
+    }
+    
+    public double fuelAbsorptionTemperatureCoefficient(int entry) {
+        return fuelAbsorptionTemperatureCoefficient[entry < rodCount ? 0 : 1];
+    }
+    
+    /**
+     * Fills in the followers of both samples, and interpolates between them to the fuel temperature given to buildTraceList
+     */
+    public void resolveFollowers() {
+        lower.resolveFollowers();
+        upper.resolveFollowers();
+        final double lowerWeight = 1 - upperWeight;
+        final double upperWeight = this.upperWeight;
+        for (int i = 0; i < rodCount; i++) {
+            fuelRFAdded[i] = lower.fuelRFAdded[i] * lowerWeight + upper.fuelRFAdded[i] * upperWeight;
+            fuelRadAdded[i] = lower.fuelRadAdded[i] * lowerWeight + upper.fuelRadAdded[i] * upperWeight;
+            caseRFAdded[i] = lower.caseRFAdded[i] * lowerWeight + upper.caseRFAdded[i] * upperWeight;
+        }
+    }
+    
+    public void deferTraces() {
+        lower.deferTraces();
+        upper.deferTraces();
+    }
+    
+    /**
+     * @return if both samples in use have every rod traced
+     */
+    public boolean hasResponses() {
+        return lower != null && lower.hasResponses() && upper.hasResponses();
+    }
+    
+    public void invalidateAll() {
+        for (IrradiationResponseCache cache : samples.values()) {
+            cache.invalidateAll();
+        }
+    }
+    
+    public int sampleCount() {
+        return samples.size();
+    }
+    
+    public int lastTraceCount() {
+        return lastTraceCount;
+    }
+    
+    public long footprintBytes(Reference2LongMap<Object> shared) {
+        long bytes = rodCount * (3L * 8 + 4);
+        for (IrradiationResponseCache cache : samples.values()) {
+            bytes += cache.footprintBytes(shared);
+        }
+        return bytes;
+    }
+}
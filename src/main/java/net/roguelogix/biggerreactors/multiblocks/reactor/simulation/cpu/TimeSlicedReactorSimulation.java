@@ -2,11 +2,11 @@ package net.roguelogix.biggerreactors.multiblocks.reactor.simulation.cpu;
 
 import net.roguelogix.biggerreactors.Config;
 import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.base.BaseReactorSimulation;
+import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.base.RayProgram;
 import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.base.SimUtil;
 import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.SimulationDescription;
 import net.roguelogix.biggerreactors.registries.ReactorModeratorRegistry;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Random;
@@ -85,28 +85,32 @@ public class TimeSlicedReactorSimulation extends BaseReactorSimulation {
         rawFuelUsage += (FuelPerRadiationUnit * effectiveRawRadIntensity / fertility()) * FuelUsageMultiplier; // Not a typo. Fuel usage is thus penalized at high heats.
         fuelRFAdded += FEPerRadiationUnit * initialIntensity;
         
-        double rayMultiplier = 1.0 / (double) (SimUtil.rays.size());
+        double rayMultiplier = 1.0 / (double) (rayProgram.rayCount);
         
-        for (int j = 0; j < SimUtil.rays.size(); j++) {
-            ArrayList<SimUtil.RayStep> raySteps = SimUtil.rays.get(j);
+        final int[] rayStarts = rayProgram.rayStarts;
+        final int[] steps = rayProgram.steps;
+        final double[] lengths = rayProgram.lengths;
+        
+        for (int j = 0; j < rayProgram.rayCount; j++) {
             double neutronHardness = initialHardness;
             double neutronIntensity = initialIntensity * rayMultiplier;
-            //noinspection ForLoopReplaceableByForEach
-            for (int k = 0; k < raySteps.size(); k++) {
-                SimUtil.RayStep rayStep = raySteps.get(k);
-                final int currentX = rod.x + rayStep.offset.x;
-                final int currentY = yLevel + rayStep.offset.y;
-                final int currentZ = rod.z + rayStep.offset.z;
+            final int rayEnd = rayStarts[j + 1];
+            for (int k = rayStarts[j]; k < rayEnd; k++) {
+                final int stepIndex = k * RayProgram.STEP_STRIDE;
+                final double stepLength = lengths[k];
+                final int currentX = rod.x + steps[stepIndex + RayProgram.STEP_X];
+                final int currentY = yLevel + steps[stepIndex + RayProgram.STEP_Y];
+                final int currentZ = rod.z + steps[stepIndex + RayProgram.STEP_Z];
                 if (currentX < 0 || currentX >= this.x ||
-                            currentY < 0 || currentY >= this.y ||
+                            yLevel < steps[stepIndex + RayProgram.STEP_K_START] || yLevel >= steps[stepIndex + RayProgram.STEP_K_END] ||
                             currentZ < 0 || currentZ >= this.z) {
                     break;
                 }
-                ReactorModeratorRegistry.IModeratorProperties properties = moderatorProperties[currentX][currentY][currentZ];
+                ReactorModeratorRegistry.IModeratorProperties properties = moderatorPropertiesAt(currentX, currentY, currentZ);
                 if (properties != null) {
-                    final double radiationAbsorbed = neutronIntensity * properties.absorption() * (1f - neutronHardness) * rayStep.length;
+                    final double radiationAbsorbed = neutronIntensity * properties.absorption() * (1f - neutronHardness) * stepLength;
                     neutronIntensity = Math.max(0, neutronIntensity - radiationAbsorbed);
-                    neutronHardness = neutronHardness / (((properties.moderation() - 1.0) * rayStep.length) + 1.0);
+                    neutronHardness = neutronHardness / (((properties.moderation() - 1.0) * stepLength) + 1.0);
                     caseRFAdded += properties.heatEfficiency() * radiationAbsorbed * FEPerRadiationUnit;
                 } else {
                     // its a fuel rod!
@@ -120,7 +124,7 @@ public class TimeSlicedReactorSimulation extends BaseReactorSimulation {
                     final double baseAbsorption = fuelAbsorptionTemperatureCoefficient * (1f - (neutronHardness * fuelHardnessMultiplier));
                     
                     // Some fuels are better at absorbing radiation than others
-                    final double scaledAbsorption = baseAbsorption * FuelAbsorptionCoefficient * rayStep.length;
+                    final double scaledAbsorption = baseAbsorption * FuelAbsorptionCoefficient * stepLength;
                     
                     // Control rods increase total neutron absorption, but decrease the total neutrons which fertilize the fuel
                     // Absorb up to 50% better with control rods inserted.
@@ -134,7 +138,7 @@ public class TimeSlicedReactorSimulation extends BaseReactorSimulation {
                     final double fuelModerationFactor = FuelModerationFactor + (FuelModerationFactor * controlRodInsertion + controlRodInsertion);
                     
                     neutronIntensity = Math.max(0, neutronIntensity - (radiationAbsorbed));
-                    neutronHardness = neutronHardness / (((fuelModerationFactor - 1.0) * rayStep.length) + 1.0);
+                    neutronHardness = neutronHardness / (((fuelModerationFactor - 1.0) * stepLength) + 1.0);
                     
                     // Being irradiated both heats up the fuel and also enhances its fertility
                     fuelRFAdded += radiationAbsorbed * FEPerRadiationUnit;
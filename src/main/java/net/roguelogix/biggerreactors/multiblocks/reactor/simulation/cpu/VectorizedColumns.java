@@ -0,0 +1,206 @@
+package net.roguelogix.biggerreactors.multiblocks.reactor.simulation.cpu;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+import net.roguelogix.biggerreactors.multiblocks.reactor.simulation.base.ModeratorCache;
+
+/**
+ * Vector API version of the per step Y column update in FullPassReactorSimulation.runIrradiationRequest
+ * <p>
+ * Only ever classloaded when jdk.incubator.vector is present, see FullPassReactorSimulation.VECTOR_API_AVAILABLE
+ */
+final class VectorizedColumns {
+    
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+    // byte indices are widened a lane of doubles at a time, byte vectors are at least 64 bits, so they can load more than they use
+    private static final VectorSpecies<Integer> INT_SPECIES = VectorSpecies.of(int.class, VectorShape.forBitSize(SPECIES.length() * Integer.SIZE));
+    private static final VectorSpecies<Byte> BYTE_SPECIES = VectorSpecies.of(byte.class, VectorShape.forBitSize(Math.max(64, SPECIES.length() * Byte.SIZE)));
+    
+    private final ModeratorCache[] moderatorCache;
+    private final double[] absorptions;
+    private final double[] moderations;
+    private final double[] heatEfficiencies;
+    // moderator indices of the column being gathered from, widened to ints, as gathers only take int index maps
+    private final int[] columnModerators;
+    
+    double fuelRFAdded = 0;
+    double fuelRadAdded = 0;
+    double caseRFAdded = 0;
+    
+    VectorizedColumns(ModeratorCache[] moderatorCache, int controlRodLength) {
+        this.moderatorCache = moderatorCache;
+        columnModerators = new int[controlRodLength];
+        absorptions = new double[moderatorCache.length];
+        moderations = new double[moderatorCache.length];
+        heatEfficiencies = new double[moderatorCache.length];
+    }
+    
+    void updateCache() {
+        for (int i = 0; i < moderatorCache.length; i++) {
+            absorptions[i] = moderatorCache[i].absorption;
+            moderations[i] = moderatorCache[i].moderation;
+            heatEfficiencies[i] = moderatorCache[i].heatEfficiency;
+        }
+    }
+    
+    /**
+     * @return the intensity left over all Y levels
+     */
+    double moderatorColumn(double[] intensities, double[] hardnesses, int kStart, int kEnd, ModeratorIndices moderatorIndices, int moderatorIndexOffset, double stepLength) {
+        final int[] columnModerators = this.columnModerators;
+        final byte[] bytes = moderatorIndices.bytes;
+        // native ones are widened like the other widths
+        final boolean byteWidth = bytes != null && moderatorIndices.width == ModeratorIndices.BYTE_WIDTH;
+        if (!byteWidth) {
+            moderatorIndices.copyInto(moderatorIndexOffset + kStart, columnModerators, kStart, kEnd - kStart);
+        }
+        final var one = DoubleVector.broadcast(SPECIES, 1.0);
+        var caseRFAdded = DoubleVector.zero(SPECIES);
+        var remainingIntensity = DoubleVector.zero(SPECIES);
+        int upperBound = kStart + SPECIES.loopBound(kEnd - kStart);
+        if (byteWidth) {
+            // the last few are left to the scalar tail when a whole byte vector would read past the end of the indices
+            upperBound = Math.min(upperBound, bytes.length - BYTE_SPECIES.length() - moderatorIndexOffset + 1);
+        }
+        int k = kStart;
+        for (; k < upperBound; k += SPECIES.length()) {
+            final var neutronIntensity = DoubleVector.fromArray(SPECIES, intensities, k);
+            final var neutronHardness = DoubleVector.fromArray(SPECIES, hardnesses, k);
+            
+            if (byteWidth) {
+                ((IntVector) ByteVector.fromArray(BYTE_SPECIES, bytes, moderatorIndexOffset + k).castShape(INT_SPECIES, 0)).intoArray(columnModerators, k);
+            }
+            final var absorption = DoubleVector.fromArray(SPECIES, absorptions, 0, columnModerators, k);
+            final var moderation = DoubleVector.fromArray(SPECIES, moderations, 0, columnModerators, k);
+            final var heatEfficiency = DoubleVector.fromArray(SPECIES, heatEfficiencies, 0, columnModerators, k);
+            
+            final var radiationAbsorbed = neutronIntensity.mul(absorption).mul(one.sub(neutronHardness)).mul(stepLength);
+            final var newIntensity = neutronIntensity.sub(radiationAbsorbed).max(0.0);
+            newIntensity.intoArray(intensities, k);
+            neutronHardness.div(moderation.mul(stepLength).add(one)).intoArray(hardnesses, k);
+            caseRFAdded = caseRFAdded.add(heatEfficiency.mul(radiationAbsorbed));
+            remainingIntensity = remainingIntensity.add(newIntensity);
+        }
+        double caseRFAddedTail = 0;
+        double remainingIntensityTail = 0;
+        for (; k < kEnd; k++) {
+            final double neutronIntensity = intensities[k];
+            final double neutronHardness = hardnesses[k];
+            
+            final int moderatorIndex = moderatorIndices.get(moderatorIndexOffset + k);
+            final double radiationAbsorbed = neutronIntensity * absorptions[moderatorIndex] * (1.0 - neutronHardness) * stepLength;
+            final double newIntensity = Math.max(0, neutronIntensity - radiationAbsorbed);
+            intensities[k] = newIntensity;
+            hardnesses[k] = neutronHardness / ((moderations[moderatorIndex] * stepLength) + 1.0);
+            caseRFAddedTail += heatEfficiencies[moderatorIndex] * radiationAbsorbed;
+            remainingIntensityTail += newIntensity;
+        }
+        this.caseRFAdded += caseRFAdded.reduceLanes(VectorOperators.ADD) + caseRFAddedTail;
+        return remainingIntensity.reduceLanes(VectorOperators.ADD) + remainingIntensityTail;
+    }
+    
+    /**
+     * steps firstStep until lastStep, through columns that are all the same moderator, one Y level at a time
+     *
+     * @return the intensity left over all Y levels
+     */
+    double moderatorRun(double[] intensities, double[] hardnesses, int kStart, int kEnd, int moderatorIndex, double[] lengths, int firstStep, int lastStep) {
+        final var one = DoubleVector.broadcast(SPECIES, 1.0);
+        final double absorption = absorptions[moderatorIndex];
+        final double moderation = moderations[moderatorIndex];
+        var radiationAbsorbedTotal = DoubleVector.zero(SPECIES);
+        double radiationAbsorbedTail = 0;
+        double remainingIntensity = 0;
+        final int upperBound = kStart + SPECIES.loopBound(kEnd - kStart);
+        // Y levels stay the inner loop, they are independent of each other where steps aren't
+        for (int step = firstStep; step < lastStep; step++) {
+            final double stepAbsorption = absorption * lengths[step];
+            final double hardnessDivisor = (moderation * lengths[step]) + 1.0;
+            var remainingIntensityLanes = DoubleVector.zero(SPECIES);
+            int k = kStart;
+            for (; k < upperBound; k += SPECIES.length()) {
+                final var neutronIntensity = DoubleVector.fromArray(SPECIES, intensities, k);
+                final var neutronHardness = DoubleVector.fromArray(SPECIES, hardnesses, k);
+                final var radiationAbsorbed = neutronIntensity.mul(stepAbsorption).mul(one.sub(neutronHardness));
+                final var newIntensity = neutronIntensity.sub(radiationAbsorbed).max(0.0);
+                newIntensity.intoArray(intensities, k);
+                neutronHardness.div(hardnessDivisor).intoArray(hardnesses, k);
+                radiationAbsorbedTotal = radiationAbsorbedTotal.add(radiationAbsorbed);
+                remainingIntensityLanes = remainingIntensityLanes.add(newIntensity);
+            }
+            remainingIntensity = remainingIntensityLanes.reduceLanes(VectorOperators.ADD);
+            for (; k < kEnd; k++) {
+                final double neutronIntensity = intensities[k];
+                final double neutronHardness = hardnesses[k];
+                final double radiationAbsorbed = neutronIntensity * stepAbsorption * (1.0 - neutronHardness);
+                final double newIntensity = Math.max(0, neutronIntensity - radiationAbsorbed);
+                intensities[k] = newIntensity;
+                hardnesses[k] = neutronHardness / hardnessDivisor;
+                radiationAbsorbedTail += radiationAbsorbed;
+                remainingIntensity += newIntensity;
+            }
+        }
+        this.caseRFAdded += heatEfficiencies[moderatorIndex] * (radiationAbsorbedTotal.reduceLanes(VectorOperators.ADD) + radiationAbsorbedTail);
+        return remainingIntensity;
+    }
+    
+    /**
+     * @return the intensity left over all Y levels
+     */
+    double fuelColumn(double[] intensities, double[] hardnesses, int kStart, int kEnd, double fuelAbsorptionTemperatureCoefficient, double fuelHardnessMultiplier, double stepFuelAbsorptionCoefficient, double halfRodInsertion, double hardnessMultiplier) {
+        final var one = DoubleVector.broadcast(SPECIES, 1.0);
+        var fuelRFAdded = DoubleVector.zero(SPECIES);
+        var fuelRadAdded = DoubleVector.zero(SPECIES);
+        var remainingIntensity = DoubleVector.zero(SPECIES);
+        final int upperBound = kStart + SPECIES.loopBound(kEnd - kStart);
+        int k = kStart;
+        for (; k < upperBound; k += SPECIES.length()) {
+            final var neutronIntensity = DoubleVector.fromArray(SPECIES, intensities, k);
+            final var neutronHardness = DoubleVector.fromArray(SPECIES, hardnesses, k);
+            
+            final var baseAbsorption = one.sub(neutronHardness.mul(fuelHardnessMultiplier)).mul(fuelAbsorptionTemperatureCoefficient);
+            final var scaledAbsorption = baseAbsorption.mul(stepFuelAbsorptionCoefficient);
+            final var controlRodBonus = one.sub(scaledAbsorption).mul(halfRodInsertion);
+            final var controlRodPenalty = scaledAbsorption.mul(halfRodInsertion);
+            
+            final var radiationAbsorbed = scaledAbsorption.add(controlRodBonus).mul(neutronIntensity);
+            final var fertilityAbsorbed = scaledAbsorption.sub(controlRodPenalty).mul(neutronIntensity);
+            
+            final var newIntensity = neutronIntensity.sub(radiationAbsorbed).max(0.0);
+            newIntensity.intoArray(intensities, k);
+            neutronHardness.mul(hardnessMultiplier).intoArray(hardnesses, k);
+            fuelRFAdded = fuelRFAdded.add(radiationAbsorbed);
+            fuelRadAdded = fuelRadAdded.add(fertilityAbsorbed);
+            remainingIntensity = remainingIntensity.add(newIntensity);
+        }
+        double fuelRFAddedTail = 0;
+        double fuelRadAddedTail = 0;
+        double remainingIntensityTail = 0;
+        for (; k < kEnd; k++) {
+            final double neutronIntensity = intensities[k];
+            final double neutronHardness = hardnesses[k];
+            
+            final double baseAbsorption = fuelAbsorptionTemperatureCoefficient * (1.0 - (neutronHardness * fuelHardnessMultiplier));
+            final double scaledAbsorption = baseAbsorption * stepFuelAbsorptionCoefficient;
+            final double controlRodBonus = (1.0 - scaledAbsorption) * halfRodInsertion;
+            final double controlRodPenalty = scaledAbsorption * halfRodInsertion;
+            
+            final double radiationAbsorbed = (scaledAbsorption + controlRodBonus) * neutronIntensity;
+            final double fertilityAbsorbed = (scaledAbsorption - controlRodPenalty) * neutronIntensity;
+            
+            final double newIntensity = Math.max(0, neutronIntensity - (radiationAbsorbed));
+            intensities[k] = newIntensity;
+            hardnesses[k] = neutronHardness * hardnessMultiplier;
+            fuelRFAddedTail += radiationAbsorbed;
+            fuelRadAddedTail += fertilityAbsorbed;
+            remainingIntensityTail += newIntensity;
+        }
+        this.fuelRFAdded += fuelRFAdded.reduceLanes(VectorOperators.ADD) + fuelRFAddedTail;
+        this.fuelRadAdded += fuelRadAdded.reduceLanes(VectorOperators.ADD) + fuelRadAddedTail;
+        return remainingIntensity.reduceLanes(VectorOperators.ADD) + remainingIntensityTail;
+    }
+}